@@ -0,0 +1,180 @@
+package org.elasticsearch.index.mapper.descriptor;
+
+import net.semanticmetadata.lire.utils.SerializationUtils;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Binary layout of a descriptor in doc values. Doubles and floats are stored big-endian, doubles as written by
+ * {@link SerializationUtils#toByteArray(double[])}. Bytes are signed and quantized, value = byte * scale + offset
+ */
+public final class DescriptorEncoding {
+
+    public static final DescriptorEncoding DOUBLE = new DescriptorEncoding(ElementTypeEnum.DOUBLE, 1, 0);
+
+    private final ElementTypeEnum elementType;
+    private final double scale;
+    private final double offset;
+
+    public DescriptorEncoding(ElementTypeEnum elementType, double scale, double offset) {
+        if (scale <= 0) {
+            throw new IllegalArgumentException("Descriptor scale must be positive, got [" + scale + "]");
+        }
+        this.elementType = elementType;
+        this.scale = scale;
+        this.offset = offset;
+    }
+
+    public ElementTypeEnum elementType() {
+        return elementType;
+    }
+
+    public double scale() {
+        return scale;
+    }
+
+    public double offset() {
+        return offset;
+    }
+
+    public byte[] encode(double[] descriptor) {
+        byte[] bytes = new byte[descriptor.length * elementType.getBytes()];
+        switch (elementType) {
+            case DOUBLE:
+                for (int i = 0, o = 0; i < descriptor.length; i++, o += 8) {
+                    writeLong(bytes, o, Double.doubleToLongBits(descriptor[i]));
+                }
+                break;
+            case FLOAT:
+                for (int i = 0, o = 0; i < descriptor.length; i++, o += 4) {
+                    writeInt(bytes, o, Float.floatToIntBits((float) descriptor[i]));
+                }
+                break;
+            case BYTE:
+                for (int i = 0; i < descriptor.length; i++) {
+                    long quantized = Math.round((descriptor[i] - offset) / scale);
+                    bytes[i] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, quantized));
+                }
+                break;
+        }
+        return bytes;
+    }
+
+    /**
+     * Number of dimensions of an encoded descriptor
+     */
+    public int dimensions(BytesRef bytesRef) {
+        return bytesRef.length / elementType.getBytes();
+    }
+
+    /**
+     * Read encoded descriptor into <code>descriptor</code>, its length must match
+     */
+    public void decode(BytesRef bytesRef, float[] descriptor) {
+        checkLength(bytesRef, descriptor.length);
+        final byte[] bytes = bytesRef.bytes;
+        int o = bytesRef.offset;
+        switch (elementType) {
+            case DOUBLE:
+                for (int i = 0; i < descriptor.length; i++, o += 8) {
+                    descriptor[i] = (float) Double.longBitsToDouble(readLong(bytes, o));
+                }
+                break;
+            case FLOAT:
+                for (int i = 0; i < descriptor.length; i++, o += 4) {
+                    descriptor[i] = Float.intBitsToFloat(readInt(bytes, o));
+                }
+                break;
+            case BYTE:
+                for (int i = 0; i < descriptor.length; i++, o++) {
+                    descriptor[i] = (float) (bytes[o] * scale + offset);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Squared euclidean distance between query and encoded descriptor, read in place
+     */
+    public double distance(double[] query, BytesRef bytesRef) {
+        checkLength(bytesRef, query.length);
+        final byte[] bytes = bytesRef.bytes;
+        int o = bytesRef.offset;
+        double distance = 0;
+        switch (elementType) {
+            case DOUBLE:
+                for (int i = 0; i < query.length; i++, o += 8) {
+                    double diff = query[i] - Double.longBitsToDouble(readLong(bytes, o));
+                    distance += diff * diff;
+                }
+                break;
+            case FLOAT:
+                for (int i = 0; i < query.length; i++, o += 4) {
+                    double diff = query[i] - Float.intBitsToFloat(readInt(bytes, o));
+                    distance += diff * diff;
+                }
+                break;
+            case BYTE:
+                for (int i = 0; i < query.length; i++, o++) {
+                    double diff = query[i] - (bytes[o] * scale + offset);
+                    distance += diff * diff;
+                }
+                break;
+        }
+        return distance;
+    }
+
+    private void checkLength(BytesRef bytesRef, int dimensions) {
+        if (bytesRef.length != dimensions * elementType.getBytes()) {
+            throw new IllegalArgumentException("Descriptor length [" + dimensions(bytesRef) + "] does not match expected length [" + dimensions + "]");
+        }
+    }
+
+    private static long readLong(byte[] bytes, int o) {
+        return ((long) readInt(bytes, o) << 32) | (readInt(bytes, o + 4) & 0xffffffffL);
+    }
+
+    private static int readInt(byte[] bytes, int o) {
+        return (bytes[o] & 0xff) << 24
+                | (bytes[o + 1] & 0xff) << 16
+                | (bytes[o + 2] & 0xff) << 8
+                | (bytes[o + 3] & 0xff);
+    }
+
+    private static void writeLong(byte[] bytes, int o, long value) {
+        writeInt(bytes, o, (int) (value >>> 32));
+        writeInt(bytes, o + 4, (int) value);
+    }
+
+    private static void writeInt(byte[] bytes, int o, int value) {
+        bytes[o] = (byte) (value >>> 24);
+        bytes[o + 1] = (byte) (value >>> 16);
+        bytes[o + 2] = (byte) (value >>> 8);
+        bytes[o + 3] = (byte) value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof DescriptorEncoding))
+            return false;
+        DescriptorEncoding other = (DescriptorEncoding) o;
+        return elementType == other.elementType
+                && Double.compare(scale, other.scale) == 0
+                && Double.compare(offset, other.offset) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = elementType.hashCode();
+        result = 31 * result + Double.valueOf(scale).hashCode();
+        result = 31 * result + Double.valueOf(offset).hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        if (elementType != ElementTypeEnum.BYTE) {
+            return elementType.name().toLowerCase();
+        }
+        return "byte(scale=" + scale + ",offset=" + offset + ")";
+    }
+}
@@ -13,8 +13,10 @@ import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.mapper.*;
 import org.elasticsearch.index.mapper.image.HashEnum;
+import org.elasticsearch.index.mapper.image.LshMultiProbe;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -29,6 +31,10 @@ public class DescriptorMapper extends FieldMapper {
     private static ESLogger logger = ESLoggerFactory.getLogger(DescriptorMapper.class.getName());
 
     public static final String HASH = "hash";
+    public static final String ELEMENT_TYPE = "element_type";
+    public static final String SCALE = "scale";
+    public static final String OFFSET = "offset";
+    public static final String MULTI_PROBE = "multi_probe";
 
     public static final String BIT_SAMPLING_FILE = "/hash/LshBitSampling.obj";
     public static final String LSH_HASH_FILE = "/hash/lshHashFunctions.obj";
@@ -52,12 +58,18 @@ public class DescriptorMapper extends FieldMapper {
         }
     }
 
-    static final class DescriptorFieldType extends MappedFieldType {
+    public static final class DescriptorFieldType extends MappedFieldType {
+
+        private DescriptorEncoding encoding = DescriptorEncoding.DOUBLE;
+
+        private boolean multiProbe = false;
 
         public DescriptorFieldType() {}
 
         protected DescriptorFieldType(DescriptorMapper.DescriptorFieldType ref) {
             super(ref);
+            this.encoding = ref.encoding;
+            this.multiProbe = ref.multiProbe;
         }
 
         @Override
@@ -65,6 +77,51 @@ public class DescriptorMapper extends FieldMapper {
             return new DescriptorMapper.DescriptorFieldType(this);
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (!super.equals(o)) return false;
+            DescriptorFieldType that = (DescriptorFieldType) o;
+            return encoding.equals(that.encoding) && multiProbe == that.multiProbe;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * super.hashCode() + encoding.hashCode()) + (multiProbe ? 1 : 0);
+        }
+
+        @Override
+        public void checkCompatibility(MappedFieldType fieldType, List<String> conflicts, boolean strict) {
+            super.checkCompatibility(fieldType, conflicts, strict);
+            DescriptorFieldType other = (DescriptorFieldType) fieldType;
+            if (!encoding.equals(other.encoding)) {
+                conflicts.add("mapper [" + names().fullName() + "] has different [" + ELEMENT_TYPE + "], [" + SCALE + "] or [" + OFFSET + "] values");
+            }
+            if (multiProbe != other.multiProbe) {
+                conflicts.add("mapper [" + names().fullName() + "] has different [" + MULTI_PROBE + "] values");
+            }
+        }
+
+        public DescriptorEncoding encoding() {
+            return encoding;
+        }
+
+        public void setEncoding(DescriptorEncoding encoding) {
+            checkIfFrozen();
+            this.encoding = encoding;
+        }
+
+        /**
+         * Whether LSH terms are indexed per hash function, see {@link LshMultiProbe}
+         */
+        public boolean multiProbe() {
+            return multiProbe;
+        }
+
+        public void setMultiProbe(boolean multiProbe) {
+            checkIfFrozen();
+            this.multiProbe = multiProbe;
+        }
+
         @Override
         public String typeName() {
             return CONTENT_TYPE;
@@ -80,6 +137,14 @@ public class DescriptorMapper extends FieldMapper {
 
         private String hash;
 
+        private ElementTypeEnum elementType = ElementTypeEnum.DOUBLE;
+
+        private double scale = 1;
+
+        private double offset = 0;
+
+        private boolean multiProbe = false;
+
         protected Builder(String name) {
             super(name, Defaults.FIELD_TYPE, Defaults.FIELD_TYPE);
             this.builder = this;
@@ -90,6 +155,26 @@ public class DescriptorMapper extends FieldMapper {
             return this;
         }
 
+        public Builder setElementType(ElementTypeEnum elementType) {
+            this.elementType = elementType;
+            return this;
+        }
+
+        public Builder setScale(double scale) {
+            this.scale = scale;
+            return this;
+        }
+
+        public Builder setOffset(double offset) {
+            this.offset = offset;
+            return this;
+        }
+
+        public Builder setMultiProbe(boolean multiProbe) {
+            this.multiProbe = multiProbe;
+            return this;
+        }
+
         @Override
         public DescriptorMapper build(BuilderContext context) {
 //            setupFieldType(context);
@@ -104,6 +189,8 @@ public class DescriptorMapper extends FieldMapper {
             defaultFieldType.setNames(new MappedFieldType.Names(name));
 
             fieldType.setNames(new MappedFieldType.Names(name));
+            ((DescriptorFieldType) fieldType).setEncoding(new DescriptorEncoding(elementType, scale, offset));
+            ((DescriptorFieldType) fieldType).setMultiProbe(multiProbe);
 
             return new DescriptorMapper(hash, hashMapper, name, fieldType, defaultFieldType, context.indexSettings(), multiFieldsBuilder.build(this, context), copyTo);
         }
@@ -123,6 +210,14 @@ public class DescriptorMapper extends FieldMapper {
 
                 if (HASH.equals(fieldName)) {
                     hash = (String) fieldNode;
+                } else if (ELEMENT_TYPE.equals(fieldName)) {
+                    builder.setElementType(ElementTypeEnum.getByName((String) fieldNode));
+                } else if (SCALE.equals(fieldName)) {
+                    builder.setScale(((Number) fieldNode).doubleValue());
+                } else if (OFFSET.equals(fieldName)) {
+                    builder.setOffset(((Number) fieldNode).doubleValue());
+                } else if (MULTI_PROBE.equals(fieldName)) {
+                    builder.setMultiProbe(XContentMapValues.nodeBooleanValue(fieldNode));
                 }
             }
 
@@ -146,6 +241,11 @@ public class DescriptorMapper extends FieldMapper {
         this.hashMapper = hashMapper;
     }
 
+    @Override
+    public DescriptorFieldType fieldType() {
+        return (DescriptorFieldType) super.fieldType();
+    }
+
     @Override
     public Mapper parse(ParseContext context) throws IOException {
         XContentParser parser = context.parser();
@@ -166,7 +266,7 @@ public class DescriptorMapper extends FieldMapper {
             throw new MapperParsingException("No descriptor is provided.");
         }
 
-        byte[] content = SerializationUtils.toByteArray(descriptor);
+        byte[] content = fieldType().encoding().encode(descriptor);
         context.doc().add(new BinaryDocValuesField(name(), new BytesRef(content)));
 
         int[] value;
@@ -178,7 +278,9 @@ public class DescriptorMapper extends FieldMapper {
             throw new IllegalArgumentException();
         }
 
-        hashMapper.parse(context.createExternalValueContext(SerializationUtils.arrayToString(value)));
+        String hashValue = hash.equals(HashEnum.LSH.name()) && fieldType().multiProbe()
+                ? LshMultiProbe.value(value) : SerializationUtils.arrayToString(value);
+        hashMapper.parse(context.createExternalValueContext(hashValue));
 
         return null;
     }
@@ -195,6 +297,18 @@ public class DescriptorMapper extends FieldMapper {
         builder.field("type", CONTENT_TYPE);
         builder.field(HASH, hash);
 
+        DescriptorEncoding encoding = fieldType().encoding();
+        if (encoding.elementType() != ElementTypeEnum.DOUBLE) {
+            builder.field(ELEMENT_TYPE, encoding.elementType().name().toLowerCase());
+        }
+        if (encoding.elementType() == ElementTypeEnum.BYTE) {
+            builder.field(SCALE, encoding.scale());
+            builder.field(OFFSET, encoding.offset());
+        }
+        if (fieldType().multiProbe()) {
+            builder.field(MULTI_PROBE, true);
+        }
+
         return builder.endObject();
     }
 
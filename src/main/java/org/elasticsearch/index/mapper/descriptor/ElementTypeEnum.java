@@ -0,0 +1,23 @@
+package org.elasticsearch.index.mapper.descriptor;
+
+
+/**
+ * How each dimension of a descriptor is stored
+ */
+public enum ElementTypeEnum {
+    DOUBLE(8), FLOAT(4), BYTE(1);
+
+    private final int bytes;
+
+    ElementTypeEnum(int bytes) {
+        this.bytes = bytes;
+    }
+
+    public int getBytes() {
+        return bytes;
+    }
+
+    public static ElementTypeEnum getByName(String name) {
+        return valueOf(name.toUpperCase());
+    }
+}
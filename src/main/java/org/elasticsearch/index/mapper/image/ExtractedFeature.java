@@ -0,0 +1,100 @@
+package org.elasticsearch.index.mapper.image;
+
+import com.google.common.collect.Maps;
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+import net.semanticmetadata.lire.indexers.hashing.LocalitySensitiveHashing;
+import org.elasticsearch.ElasticsearchImageProcessException;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Serialized feature of an image with its hashes, all that is indexed for one {@link FeatureEnum}
+ */
+public final class ExtractedFeature {
+
+    private final byte[] representation;
+    private final int[][] hashes;   // by HashEnum ordinal, null if not mapped
+
+    ExtractedFeature(byte[] representation, int[][] hashes) {
+        this.representation = representation;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Serialize the feature and compute the hashes mapped for it. Others are left out, their hash functions may not
+     * cover as many dimensions as the feature has
+     */
+    public static ExtractedFeature of(LireFeature lireFeature, Collection<HashEnum> hashEnums) {
+        double[] vector = indexedVector(lireFeature);
+        int[][] hashes = new int[HashEnum.values().length][];
+        for (HashEnum hashEnum : hashEnums) {
+            hashes[hashEnum.ordinal()] = generateHashes(hashEnum, vector);
+        }
+        return new ExtractedFeature(lireFeature.getByteArrayRepresentation(), hashes);
+    }
+
+    /**
+     * Vector of the feature as indexed. Serialization is lossy for some features (JCD), hashes are computed from the
+     * deserialized vector so they are the same whether the feature is extracted, precomputed or read back from the index
+     */
+    public static double[] indexedVector(LireFeature lireFeature) {
+        LireFeature indexed;
+        try {
+            indexed = lireFeature.getClass().newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new ElasticsearchImageProcessException("Failed to instantiate feature [" + lireFeature.getClass().getSimpleName() + "]", e);
+        }
+        indexed.setByteArrayRepresentation(lireFeature.getByteArrayRepresentation());
+        return indexed.getFeatureVector();
+    }
+
+    static int[] generateHashes(HashEnum hashEnum, double[] vector) {
+        if (hashEnum == HashEnum.BIT_SAMPLING) {
+            return BitSampling.generateHashes(vector);
+        }
+        return LocalitySensitiveHashing.generateHashes(vector);
+    }
+
+    public byte[] representation() {
+        return representation;
+    }
+
+    /**
+     * Hashes of the feature, null if the hash was not computed
+     */
+    public int[] hashes(HashEnum hashEnum) {
+        return hashes[hashEnum.ordinal()];
+    }
+
+    /**
+     * Value of an image field carrying the image, kept as the given base64 string, and its precomputed features,
+     * as read by {@link ImageMapper}
+     */
+    public static Map<String, Object> toSource(String content, Map<FeatureEnum, ExtractedFeature> extracted) {
+        Map<String, Object> value = Maps.newHashMap();
+        value.put(ImageMapper.CONTENT, content);
+        for (Map.Entry<FeatureEnum, ExtractedFeature> entry : extracted.entrySet()) {
+            Map<String, Object> hashes = Maps.newHashMap();
+            for (HashEnum hashEnum : HashEnum.values()) {
+                if (entry.getValue().hashes(hashEnum) != null) {
+                    hashes.put(hashEnum.name(), entry.getValue().hashes(hashEnum));
+                }
+            }
+            Map<String, Object> feature = Maps.newHashMap();
+            feature.put(ImageMapper.FEATURE, entry.getValue().representation());
+            feature.put(ImageMapper.HASH, hashes);
+            value.put(entry.getKey().name(), feature);
+        }
+        return value;
+    }
+
+    public long ramBytesUsed() {
+        long bytes = 64 + representation.length;
+        for (int[] hash : hashes) {
+            bytes += 16 + (hash == null ? 0 : 4L * hash.length);
+        }
+        return bytes;
+    }
+}
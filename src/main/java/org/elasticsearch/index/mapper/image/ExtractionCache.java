@@ -0,0 +1,110 @@
+package org.elasticsearch.index.mapper.image;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.plugin.image.ImageBreaker;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+/**
+ * Node level LRU of extracted features keyed by a digest of the raw image, so images indexed again
+ * (re-crawls, reindexing, the same photo in many documents) skip decoding and extraction.
+ * Disabled unless <code>image.extract.cache.size</code> is set. Entries are charged to the <code>image</code> circuit
+ * breaker while cached, those which would trip it are not cached
+ */
+public class ExtractionCache extends AbstractComponent {
+
+    public static final String SIZE_SETTING = "image.extract.cache.size";
+
+    private final Cache<String, ExtractedFeature> cache;   // null when disabled
+    private final CircuitBreaker breaker;
+
+    @Inject
+    public ExtractionCache(Settings settings, ImageBreaker imageBreaker) {
+        super(settings);
+        this.breaker = imageBreaker.breaker();
+        ByteSizeValue size = settings.getAsBytesSize(SIZE_SETTING, new ByteSizeValue(0));
+        if (size.bytes() <= 0) {
+            this.cache = null;
+            return;
+        }
+        logger.debug("using image extraction cache of [{}]", size);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(size.bytes())
+                .weigher(new Weigher<String, ExtractedFeature>() {
+                    @Override
+                    public int weigh(String key, ExtractedFeature value) {
+                        return weight(key, value);
+                    }
+                })
+                .removalListener(new RemovalListener<String, ExtractedFeature>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, ExtractedFeature> notification) {
+                        breaker.addWithoutBreaking(-weight(notification.getKey(), notification.getValue()));
+                    }
+                })
+                .build();
+    }
+
+    public boolean enabled() {
+        return cache != null;
+    }
+
+    /**
+     * Digest of the raw image content
+     */
+    public static String digest(byte[] content) {
+        try {
+            return Base64.encodeBytes(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new ElasticsearchException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Features depend on the image and on how it is shrunk before extraction, only the hashes mapped for them are computed
+     */
+    public static String key(String digest, int maxDimension, ResamplingEnum resampling, boolean subsampling,
+                             FeatureEnum featureEnum, Set<HashEnum> hashEnums) {
+        StringBuilder key = new StringBuilder(digest).append('/').append(maxDimension).append('/').append(resampling.name())
+                .append('/').append(subsampling).append('/').append(featureEnum.name());
+        for (HashEnum hashEnum : hashEnums) {
+            key.append('/').append(hashEnum.name());
+        }
+        return key.toString();
+    }
+
+    public ExtractedFeature get(String key) {
+        return cache == null ? null : cache.getIfPresent(key);
+    }
+
+    public void put(String key, ExtractedFeature feature) {
+        if (cache == null) {
+            return;
+        }
+        try {
+            breaker.addEstimateBytesAndMaybeBreak(weight(key, feature), "image extraction cache");
+        } catch (CircuitBreakingException e) {
+            logger.debug("not caching features of [{}], {}", key, e.getMessage());
+            return;
+        }
+        cache.put(key, feature);
+    }
+
+    private static int weight(String key, ExtractedFeature feature) {
+        return (int) Math.min(Integer.MAX_VALUE, 2L * key.length() + feature.ramBytesUsed());
+    }
+}
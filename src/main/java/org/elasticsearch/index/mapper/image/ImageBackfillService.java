@@ -0,0 +1,264 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.BytesRef;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.mapper.internal.RoutingFieldMapper;
+import org.elasticsearch.index.mapper.internal.SourceFieldMapper;
+import org.elasticsearch.index.mapper.internal.UidFieldMapper;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.IndexShardState;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Extract the features of images indexed with <code>index.image.deferred_extraction</code>. Every interval each primary
+ * shard on this node takes a batch of docs marked pending, extracts the features of the image read from their
+ * <code>_source</code> like the mapper does and reindexes them with the features next to the image, which clears the
+ * marker on primaries and replicas alike. Docs whose image cannot be extracted are reindexed marked as failed instead
+ */
+public class ImageBackfillService extends AbstractLifecycleComponent<ImageBackfillService> {
+
+    public static final String INTERVAL_SETTING = "image.backfill.interval";
+    public static final String BATCH_SIZE_SETTING = "image.backfill.batch_size";
+
+    private final IndicesService indicesService;
+    private final ThreadPool threadPool;
+    private final Client client;
+    private final TimeValue interval;
+    private final int batchSize;
+
+    private final AtomicLong backfilled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long pending;
+
+    private volatile ThreadPool.Cancellable scheduled;
+
+    @Inject
+    public ImageBackfillService(Settings settings, IndicesService indicesService, ThreadPool threadPool, Client client) {
+        super(settings);
+        this.indicesService = indicesService;
+        this.threadPool = threadPool;
+        this.client = client;
+        this.interval = settings.getAsTime(INTERVAL_SETTING, TimeValue.timeValueSeconds(10));
+        this.batchSize = settings.getAsInt(BATCH_SIZE_SETTING, 100);
+    }
+
+    @Override
+    protected void doStart() {
+        // not on image_extract, the extraction of each doc forks its features there. The next round is only
+        // scheduled once this one is done
+        scheduled = threadPool.scheduleWithFixedDelay(new AbstractRunnable() {
+            @Override
+            protected void doRun() throws Exception {
+                backfill();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.warn("failed to backfill image features", t);
+            }
+        }, interval, ThreadPool.Names.GENERIC);
+    }
+
+    @Override
+    protected void doStop() {
+        if (scheduled != null) {
+            scheduled.cancel();
+        }
+    }
+
+    @Override
+    protected void doClose() {
+    }
+
+    /** docs reindexed with their features since the node started */
+    public long backfilled() {
+        return backfilled.get();
+    }
+
+    /** docs whose features could not be extracted since the node started */
+    public long failed() {
+        return failed.get();
+    }
+
+    /** docs waiting for extraction on the primaries of this node, as of the last round */
+    public long pending() {
+        return pending;
+    }
+
+    void backfill() {
+        long pendingDocs = 0;
+        for (IndexService indexService : indicesService) {
+            if (!indexService.indexSettings().getAsBoolean(ImageMapper.DEFERRED_EXTRACTION_SETTING, false)) {
+                continue;
+            }
+            for (IndexShard indexShard : indexService) {
+                if (lifecycle.started() == false) {
+                    return;
+                }
+                if (indexShard.routingEntry().primary() && indexShard.state() == IndexShardState.STARTED) {
+                    pendingDocs += backfill(indexShard, indexService.mapperService());
+                }
+            }
+        }
+        pending = pendingDocs;
+    }
+
+    /**
+     * Backfill one batch of the shard, returns the number of docs pending before it
+     */
+    private long backfill(IndexShard indexShard, MapperService mapperService) {
+        long pendingDocs = 0;
+        for (String field : imageFields(mapperService)) {
+            try (Engine.Searcher searcher = indexShard.acquireSearcher("image_backfill")) {
+                TopDocs topDocs = searcher.searcher().search(new TermQuery(new Term(field + "." + ImageMapper.PENDING, ImageMapper.PENDING_VALUE)),
+                        batchSize);
+                pendingDocs += topDocs.totalHits;
+
+                for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                    if (lifecycle.started() == false) {
+                        break;
+                    }
+                    Document doc = searcher.reader().document(scoreDoc.doc);
+                    String uid = doc.get(UidFieldMapper.NAME);
+                    long version = Versions.loadVersion(searcher.reader(), new Term(UidFieldMapper.NAME, uid));
+                    if (!backfill(indexShard.shardId().getIndex(), mapperService, field, doc, uid, version)) {
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                logger.warn("failed to backfill image features of [{}] in {}", e, field, indexShard.shardId());
+            }
+        }
+        return pendingDocs;
+    }
+
+    /**
+     * Extract the features of one doc and reindex it with them, or marked as failed if its image cannot be extracted.
+     * False if the image was rejected by the pixel budget, the rest of the batch then waits for the next round
+     */
+    private boolean backfill(String index, MapperService mapperService, String field, Document doc, String uid, long version) {
+        Uid parsedUid = Uid.createUid(uid);
+        BytesRef source = doc.getBinaryValue(SourceFieldMapper.NAME);
+        if (source == null) {   // indexed before the mapper required a complete _source, nothing to reindex from
+            logger.warn("cannot backfill image features of [{}][{}] without _source", index, uid);
+            return true;
+        }
+        Map<String, Object> sourceMap = XContentHelper.convertToMap(new BytesArray(source), true).v2();
+        Object image = get(sourceMap, field);
+
+        Map<String, Object> value;
+        try {
+            DocumentMapper documentMapper = mapperService.documentMapper(parsedUid.type());
+            FieldMapper fieldMapper = documentMapper == null ? null : documentMapper.mappers().getMapper(field);
+            if (!(fieldMapper instanceof ImageMapper) || !(image instanceof String)) {
+                throw new IllegalStateException("image field [" + field + "] or its image in _source is missing");
+            }
+            byte[] content = Base64.decode((String) image);
+            value = ExtractedFeature.toSource((String) image, ((ImageMapper) fieldMapper).extractFeatures(content));
+        } catch (ImageRejectedException e) {
+            logger.debug("image features of [{}][{}] rejected, retrying on the next round", e, index, uid);
+            return false;
+        } catch (Exception e) {
+            logger.warn("failed to backfill image features of [{}][{}]", e, index, uid);
+            value = Maps.newHashMap();
+            if (image instanceof String) {
+                value.put(ImageMapper.CONTENT, image);
+            }
+            value.put(ImageMapper.FAILED, e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+        }
+
+        try {
+            put(sourceMap, field, value);
+            client.prepareIndex(index, parsedUid.type(), parsedUid.id())
+                    .setSource(sourceMap)
+                    .setRouting(doc.get(RoutingFieldMapper.NAME))
+                    .setVersion(version)
+                    .get();
+            if (value.containsKey(ImageMapper.FAILED)) {
+                failed.incrementAndGet();
+            } else {
+                backfilled.incrementAndGet();
+            }
+        } catch (VersionConflictEngineException e) {
+            logger.trace("[{}][{}] changed while its image features were extracted", index, uid);
+        } catch (Exception e) {
+            logger.warn("failed to reindex [{}][{}] with its image features", e, index, uid);
+        }
+        return true;
+    }
+
+    private static Iterable<String> imageFields(MapperService mapperService) {
+        Set<String> fields = Sets.newHashSet();
+        for (DocumentMapper documentMapper : mapperService.docMappers(false)) {
+            for (FieldMapper fieldMapper : documentMapper.mappers()) {
+                if (fieldMapper instanceof ImageMapper) {
+                    fields.add(fieldMapper.name());
+                }
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Value at a dotted path of the source, null if missing
+     */
+    @SuppressWarnings("unchecked")
+    private static Object get(Map<String, Object> source, String path) {
+        Object value = source;
+        for (String name : path.split("\\.")) {
+            if (!(value instanceof Map)) {
+                return null;
+            }
+            value = ((Map<String, Object>) value).get(name);
+        }
+        return value;
+    }
+
+    /**
+     * Replace the value at a dotted path of the source, adding the missing objects
+     */
+    @SuppressWarnings("unchecked")
+    private static void put(Map<String, Object> source, String path, Object value) {
+        String[] names = path.split("\\.");
+        Map<String, Object> map = source;
+        for (int i = 0; i < names.length - 1; i++) {
+            Object child = map.get(names[i]);
+            if (child == null) {
+                child = Maps.newHashMap();
+                map.put(names[i], child);
+            } else if (!(child instanceof Map)) {
+                throw new IllegalStateException("[" + names[i] + "] of [" + path + "] is not an object in _source");
+            }
+            map = (Map<String, Object>) child;
+        }
+        map.put(names[names.length - 1], value);
+    }
+}
@@ -0,0 +1,333 @@
+package org.elasticsearch.index.mapper.image;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.action.support.ActionFilterChain;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.FutureUtils;
+import org.elasticsearch.plugin.image.ImagePlugin;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Extract the images of a whole bulk request in parallel on the <code>image_extract</code> pool before it is split into
+ * shard requests, one task per pool thread taking documents in turn, so a bulk uses all cores even when a single feature
+ * is mapped without filling the queue of the pool.
+ * Images of indices with <code>index.image.bulk_extraction</code> are replaced in the source by the image with its
+ * precomputed features, which the mapper indexes without extracting on primaries and replicas.
+ * Documents which fail or take longer than <code>image.bulk_extraction.timeout</code> are left for the mapper
+ */
+public class ImageBulkExtractionFilter extends AbstractComponent implements ActionFilter {
+
+    public static final String ENABLED_SETTING = "index.image.bulk_extraction";
+    public static final String TIMEOUT_SETTING = "image.bulk_extraction.timeout";
+
+    private final ClusterService clusterService;
+    private final IndexNameExpressionResolver indexNameExpressionResolver;
+    private final ThreadPool threadPool;
+    private final PixelBudget pixelBudget;
+    private final ExtractionCache extractionCache;
+    private final TimeValue timeout;
+
+    @Inject
+    public ImageBulkExtractionFilter(Settings settings, ClusterService clusterService, IndexNameExpressionResolver indexNameExpressionResolver,
+                                     ThreadPool threadPool, PixelBudget pixelBudget, ExtractionCache extractionCache) {
+        super(settings);
+        this.clusterService = clusterService;
+        this.indexNameExpressionResolver = indexNameExpressionResolver;
+        this.threadPool = threadPool;
+        this.pixelBudget = pixelBudget;
+        this.extractionCache = extractionCache;
+        this.timeout = settings.getAsTime(TIMEOUT_SETTING, ImageMapper.DEFAULT_EXTRACT_TIMEOUT);
+    }
+
+    @Override
+    public int order() {
+        return Integer.MAX_VALUE;   // after filters which may reject the request
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})   // raw in the ActionFilter interface
+    public void apply(final Task task, final String action, final ActionRequest request, final ActionListener listener,
+                      final ActionFilterChain chain) {
+        if (!BulkAction.NAME.equals(action)) {
+            chain.proceed(task, action, request, listener);
+            return;
+        }
+
+        final List<BulkImages> jobs = jobs((BulkRequest) request);
+        if (jobs.isEmpty()) {
+            chain.proceed(task, action, request, listener);
+            return;
+        }
+
+        // sources are only replaced here, once, so a late extraction never touches a request already sent
+        final AtomicBoolean proceeded = new AtomicBoolean();
+        final AtomicReference<ScheduledFuture<?>> timer = new AtomicReference<>();
+        final Runnable proceed = new Runnable() {
+            @Override
+            public void run() {
+                if (proceeded.compareAndSet(false, true)) {
+                    FutureUtils.cancel(timer.get());
+                    for (BulkImages job : jobs) {
+                        job.apply();
+                    }
+                    chain.proceed(task, action, request, listener);
+                }
+            }
+        };
+        timer.set(threadPool.schedule(timeout, ThreadPool.Names.GENERIC, proceed));
+        if (proceeded.get()) {   // proceeded before the timer was set
+            FutureUtils.cancel(timer.get());
+        }
+
+        ThreadPool.Info pool = threadPool.info(ImagePlugin.EXTRACT_THREAD_POOL);
+        int workers = Math.min(jobs.size(), pool == null ? 1 : Math.max(1, pool.getMax()));
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger remaining = new AtomicInteger(workers);
+        for (int i = 0; i < workers; i++) {
+            try {
+                threadPool.executor(ImagePlugin.EXTRACT_THREAD_POOL).execute(new AbstractRunnable() {
+                    @Override
+                    protected void doRun() throws Exception {
+                        int index;
+                        while (!proceeded.get() && (index = next.getAndIncrement()) < jobs.size()) {
+                            BulkImages job = jobs.get(index);
+                            try {
+                                job.extract();
+                            } catch (Exception e) {
+                                logger.debug("failed to extract images of [{}][{}][{}] of bulk, left for the mapper", e,
+                                        job.request.index(), job.request.type(), job.request.id());
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        logger.warn("failed to extract images of bulk, left for the mapper", t);
+                    }
+
+                    @Override
+                    public void onAfter() {
+                        if (remaining.decrementAndGet() == 0) {
+                            proceed.run();
+                        }
+                    }
+                });
+            } catch (EsRejectedExecutionException e) {   // pool saturated, the other workers or the mapper extract them
+                if (remaining.decrementAndGet() == 0) {
+                    proceed.run();
+                }
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void apply(String action, ActionResponse response, ActionListener listener, ActionFilterChain chain) {
+        chain.proceed(action, response, listener);
+    }
+
+    /**
+     * Index requests of the bulk targeting image fields of indices with bulk extraction
+     */
+    private List<BulkImages> jobs(BulkRequest bulkRequest) {
+        ClusterState state = clusterService.state();
+        Map<String, List<ImageField>> fieldsByType = Maps.newHashMap();
+        List<BulkImages> jobs = Lists.newArrayList();
+        for (ActionRequest<?> request : bulkRequest.requests()) {
+            if (!(request instanceof IndexRequest)) {
+                continue;
+            }
+            IndexRequest indexRequest = (IndexRequest) request;
+            IndexMetaData indexMetaData;
+            try {
+                indexMetaData = state.metaData().index(indexNameExpressionResolver.concreteSingleIndex(state, indexRequest));
+            } catch (Exception e) {   // not created yet, the mapper extracts it
+                continue;
+            }
+            if (indexMetaData == null || !indexMetaData.getSettings().getAsBoolean(ENABLED_SETTING, false)
+                    || indexMetaData.getSettings().getAsBoolean(ImageMapper.DEFERRED_EXTRACTION_SETTING, false)) {
+                continue;
+            }
+
+            String key = indexMetaData.getIndex() + "/" + indexRequest.type();
+            List<ImageField> fields = fieldsByType.get(key);
+            if (fields == null) {
+                fields = imageFields(indexMetaData.mapping(indexRequest.type()));
+                fieldsByType.put(key, fields);
+            }
+            if (!fields.isEmpty()) {
+                jobs.add(new BulkImages(indexRequest, fields));
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Top level image fields of the mapping
+     */
+    @SuppressWarnings("unchecked")
+    static List<ImageField> imageFields(MappingMetaData mappingMetaData) {
+        List<ImageField> fields = Lists.newArrayList();
+        if (mappingMetaData == null) {
+            return fields;
+        }
+        Map<String, Object> mapping;
+        try {
+            mapping = mappingMetaData.sourceAsMap();
+        } catch (IOException e) {
+            return fields;
+        }
+        if (mapping.size() == 1 && mapping.get(mappingMetaData.type()) instanceof Map) {
+            mapping = (Map<String, Object>) mapping.get(mappingMetaData.type());
+        }
+        Object properties = mapping.get("properties");
+        if (!(properties instanceof Map)) {
+            return fields;
+        }
+
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) properties).entrySet()) {
+            if (!(entry.getValue() instanceof Map)) {
+                continue;
+            }
+            Map<String, Object> fieldNode = (Map<String, Object>) entry.getValue();
+            if (!ImageMapper.CONTENT_TYPE.equals(fieldNode.get("type"))) {
+                continue;
+            }
+            ImageMapper.Builder builder = new ImageMapper.Builder(entry.getKey(), null, null, null);
+            ImageMapper.TypeParser.parseImageParameters(builder, fieldNode);   // source map is a copy, it may be consumed
+            Map<FeatureEnum, Set<HashEnum>> features = new EnumMap<>(FeatureEnum.class);
+            for (Map.Entry<FeatureEnum, Map<String, Object>> feature : builder.features().entrySet()) {
+                features.put(feature.getKey(), ImageMapper.mappedHashes(feature.getValue()));
+            }
+            fields.add(new ImageField(entry.getKey(), features, builder.imageFieldType()));
+        }
+        return fields;
+    }
+
+    /**
+     * Features of one image, from the extraction cache or extracted within the pixel budget, null if the format is unknown
+     */
+    Map<FeatureEnum, ExtractedFeature> extractImage(byte[] content, ImageField field) throws IOException {
+        String digest = extractionCache.enabled() ? ExtractionCache.digest(content) : null;
+        if (digest != null) {
+            Map<FeatureEnum, ExtractedFeature> cached = Maps.newHashMap();
+            for (Map.Entry<FeatureEnum, Set<HashEnum>> entry : field.features.entrySet()) {
+                ExtractedFeature feature = extractionCache.get(ExtractionCache.key(digest, field.maxDimension, field.resampling, field.subsampling,
+                        entry.getKey(), entry.getValue()));
+                if (feature != null) {
+                    cached.put(entry.getKey(), feature);
+                }
+            }
+            if (cached.size() == field.features.size()) {
+                return cached;
+            }
+        }
+
+        long pixels = ImageDecoder.pixels(content, field.maxDimension, field.resampling, field.subsampling);
+        if (pixels < 0) {
+            return null;
+        }
+        Map<FeatureEnum, ExtractedFeature> extracted;
+        Releasable admission = pixelBudget.admit(pixels, "bulk image extraction");
+        try {
+            extracted = new ImageFeatureExtractor(field.maxDimension, field.resampling, field.subsampling).extract(content, field.features);
+        } finally {
+            admission.close();
+        }
+        if (digest != null) {
+            for (Map.Entry<FeatureEnum, ExtractedFeature> entry : extracted.entrySet()) {
+                extractionCache.put(ExtractionCache.key(digest, field.maxDimension, field.resampling, field.subsampling, entry.getKey(),
+                        field.features.get(entry.getKey())), entry.getValue());
+            }
+        }
+        return extracted;
+    }
+
+    static final class ImageField {
+        final String name;
+        final Map<FeatureEnum, Set<HashEnum>> features;   // with their mapped hashes
+        final int maxDimension;
+        final ResamplingEnum resampling;
+        final boolean subsampling;
+
+        ImageField(String name, Map<FeatureEnum, Set<HashEnum>> features, ImageMapper.ImageFieldType fieldType) {
+            this.name = name;
+            this.features = features;
+            this.maxDimension = fieldType.maxDimension();
+            this.resampling = fieldType.resampling();
+            this.subsampling = fieldType.subsampling();
+        }
+    }
+
+    /**
+     * Images of one document of the bulk
+     */
+    final class BulkImages {
+        final IndexRequest request;
+        final List<ImageField> fields;
+        volatile Map<String, Object> source;   // rewritten source once all its images are extracted
+
+        BulkImages(IndexRequest request, List<ImageField> fields) {
+            this.request = request;
+            this.fields = fields;
+        }
+
+        void extract() throws IOException {
+            Map<String, Object> sourceMap = request.sourceAsMap();
+            boolean changed = false;
+            for (ImageField field : fields) {
+                Object value = sourceMap.get(field.name);
+                if (!(value instanceof String)) {   // missing or already extracted
+                    continue;
+                }
+                byte[] content = Base64.decode((String) value);
+                Map<FeatureEnum, ExtractedFeature> extracted = extractImage(content, field);
+                if (extracted == null) {
+                    continue;
+                }
+                sourceMap.put(field.name, ExtractedFeature.toSource((String) value, extracted));
+                changed = true;
+            }
+            if (changed) {
+                source = sourceMap;
+            }
+        }
+
+        void apply() {
+            if (source != null) {
+                request.source(source);
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Decode images for feature extraction, shared by the mapper and the query parser.
+ * The size is read from the header first. Fields with <code>subsampling</code> decode images larger than needed with
+ * source subsampling so their full resolution raster is never allocated. Subsampling drops pixels, it only goes all the
+ * way down for <code>nearest</code> and otherwise keeps at least twice the target size for the field's resampling to filter.
+ * Other fields decode the full image, as indices created before the option did, so their features do not change
+ */
+public class ImageDecoder {
+
+    /**
+     * Number of pixels the image is decoded to for <code>maxDimension</code>, <code>resampling</code> and
+     * <code>subsampling</code>, read from its header without decoding it, -1 if the format is unknown
+     */
+    public static long pixels(byte[] content, int maxDimension, ResamplingEnum resampling, boolean subsampling) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(content))) {
+            ImageReader reader = reader(input);
+            if (reader == null) {
+                return -1;
+            }
+            try {
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int factor = subsampling ? subsampling(width, height, maxDimension, resampling) : 1;
+                return (long) ceilDiv(width, factor) * ceilDiv(height, factor);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decode the image with its longest side at most <code>maxDimension</code>, as a packed <code>TYPE_INT_RGB</code> image
+     * shared by all extractors of the document. Null if the format is unknown
+     */
+    public static BufferedImage decode(byte[] content, int maxDimension, ResamplingEnum resampling, boolean subsampling)
+            throws IOException {
+        return decode(content, maxDimension, resampling, subsampling, null);
+    }
+
+    /**
+     * Decode like {@link #decode(byte[], int, ResamplingEnum, boolean)} but abort reading once <code>deadline</code>, a
+     * {@link System#nanoTime()}, has passed. The deadline is checked whenever the reader reports progress
+     * @throws ElasticsearchTimeoutException if the deadline passed while decoding
+     */
+    public static BufferedImage decode(byte[] content, int maxDimension, ResamplingEnum resampling, boolean subsampling,
+                                       long deadline) throws IOException {
+        return decode(content, maxDimension, resampling, subsampling, new Deadline(deadline));
+    }
+
+    private static BufferedImage decode(byte[] content, int maxDimension, ResamplingEnum resampling, boolean subsampling,
+                                        Deadline deadline) throws IOException {
+        BufferedImage img;
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(content))) {
+            ImageReader reader = reader(input);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                int factor = subsampling ? subsampling(reader.getWidth(0), reader.getHeight(0), maxDimension, resampling) : 1;
+                if (factor > 1) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                if (deadline != null) {
+                    reader.addIIOReadProgressListener(deadline);
+                }
+                img = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+        if (deadline != null && deadline.aborted) {
+            throw new ElasticsearchTimeoutException("Decoding the image exceeded its deadline");
+        }
+
+        img = resampling.scale(img, maxDimension);   // subsampling stops above the target, finish with the field's resampling
+        return toRgb(img);
+    }
+
+    /**
+     * Convert once to packed RGB. Extractors read pixels through getRGB, which is a plain array read on this layout
+     * but goes through the color model for every pixel of indexed, gray, byte interleaved or custom images.
+     * Alpha is dropped without compositing, extractors never looked at it
+     */
+    static BufferedImage toRgb(BufferedImage img) {
+        if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+            return img;
+        }
+        int width = img.getWidth();
+        int height = img.getHeight();
+        BufferedImage rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            img.getRGB(0, y, width, 1, row, 0, width);
+            rgb.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return rgb;
+    }
+
+    private static ImageReader reader(ImageInputStream input) {
+        Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+        if (readers == null || !readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, true, true);
+        return reader;
+    }
+
+    /**
+     * Largest factor keeping the longest side at least <code>maxDimension</code> for <code>nearest</code>, which picks
+     * pixels anyway, and at least twice <code>maxDimension</code> for the others so they still average what they shrink
+     */
+    static int subsampling(int width, int height, int maxDimension, ResamplingEnum resampling) {
+        int target = resampling == ResamplingEnum.NEAREST ? maxDimension : 2 * maxDimension;
+        return Math.max(1, Math.max(width, height) / target);
+    }
+
+    /**
+     * Abort the read once the deadline passed, readers check for it between rows or passes
+     */
+    private static final class Deadline implements IIOReadProgressListener {
+        private final long deadline;
+        private volatile boolean aborted;
+
+        Deadline(long deadline) {
+            this.deadline = deadline;
+        }
+
+        private void check(ImageReader source) {
+            if (!aborted && System.nanoTime() - deadline > 0) {
+                aborted = true;
+                source.abort();
+            }
+        }
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) {
+            check(source);
+        }
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            check(source);
+        }
+
+        @Override
+        public void thumbnailProgress(ImageReader source, float percentageDone) {
+            check(source);
+        }
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) {
+        }
+
+        @Override
+        public void sequenceComplete(ImageReader source) {
+        }
+
+        @Override
+        public void imageComplete(ImageReader source) {
+        }
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+        }
+
+        @Override
+        public void thumbnailComplete(ImageReader source) {
+        }
+
+        @Override
+        public void readAborted(ImageReader source) {
+        }
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
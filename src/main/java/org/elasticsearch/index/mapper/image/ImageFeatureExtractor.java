@@ -0,0 +1,125 @@
+package org.elasticsearch.index.mapper.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.Extractor;
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+import net.semanticmetadata.lire.indexers.hashing.LocalitySensitiveHashing;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Extract features outside the cluster with the same decoding, features and hashes as {@link ImageMapper},
+ * the output is accepted as the value of an <code>image</code> field in place of the image.
+ * Needs no running node, but this jar, LIRE and Elasticsearch (for XContent and its exceptions) on the classpath:
+ * <pre>java -cp ... org.elasticsearch.index.mapper.image.ImageFeatureExtractor CEDD:BIT_SAMPLING,JCD:BIT_SAMPLING+LSH [max_dimension] [resampling] [subsampling] image.jpg</pre>
+ */
+public class ImageFeatureExtractor {
+
+    static {
+        try {
+            BitSampling.readHashFunctions(ImageFeatureExtractor.class.getResourceAsStream(ImageMapper.BIT_SAMPLING_FILE));
+            LocalitySensitiveHashing.readHashFunctions(ImageFeatureExtractor.class.getResourceAsStream(ImageMapper.LSH_HASH_FILE));
+        } catch (IOException e) {
+            throw new ElasticsearchImageProcessException("Failed to initialize hash function", e);
+        }
+    }
+
+    private final int maxDimension;
+    private final ResamplingEnum resampling;
+    private final boolean subsampling;
+
+    /**
+     * Use the <code>max_dimension</code>, <code>resampling</code> and <code>subsampling</code> of the target field
+     */
+    public ImageFeatureExtractor(int maxDimension, ResamplingEnum resampling, boolean subsampling) {
+        this.maxDimension = maxDimension;
+        this.resampling = resampling;
+        this.subsampling = subsampling;
+    }
+
+    public ImageFeatureExtractor() {
+        this(ImageMapper.MAX_IMAGE_DIMENSION, ResamplingEnum.BILINEAR, false);
+    }
+
+    /**
+     * Extract the features with the hashes mapped for each of them
+     */
+    public Map<FeatureEnum, ExtractedFeature> extract(byte[] content, Map<FeatureEnum, ? extends Collection<HashEnum>> features)
+            throws IOException {
+        BufferedImage img = ImageDecoder.decode(content, maxDimension, resampling, subsampling);
+        if (img == null) {
+            throw new ElasticsearchImageProcessException("Unsupported image format");
+        }
+
+        Map<FeatureEnum, ExtractedFeature> extracted = new TreeMap<>();
+        for (Map.Entry<FeatureEnum, ? extends Collection<HashEnum>> entry : features.entrySet()) {
+            FeatureEnum featureEnum = entry.getKey();
+            try {
+                LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+                ((Extractor) lireFeature).extract(img);
+                extracted.put(featureEnum, ExtractedFeature.of(lireFeature, entry.getValue()));
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new ElasticsearchImageProcessException("Failed to extract feature " + featureEnum.name(), e);
+            }
+        }
+        return extracted;
+    }
+
+    /**
+     * Write the features as the value of an image field, with the hashes they were extracted with
+     */
+    public static XContentBuilder toXContent(Map<FeatureEnum, ExtractedFeature> extracted, XContentBuilder builder) throws IOException {
+        builder.startObject();
+        for (Map.Entry<FeatureEnum, ExtractedFeature> entry : extracted.entrySet()) {
+            builder.startObject(entry.getKey().name());
+            builder.field(ImageMapper.FEATURE, entry.getValue().representation());
+            builder.startObject(ImageMapper.HASH);
+            for (HashEnum hashEnum : HashEnum.values()) {
+                if (entry.getValue().hashes(hashEnum) != null) {
+                    builder.field(hashEnum.name(), entry.getValue().hashes(hashEnum));
+                }
+            }
+            builder.endObject();
+            builder.endObject();
+        }
+        return builder.endObject();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: ImageFeatureExtractor FEATURE[:HASH[+HASH]][,FEATURE...] [max_dimension] [resampling] [subsampling] image");
+            System.exit(1);
+        }
+
+        Map<FeatureEnum, EnumSet<HashEnum>> features = new EnumMap<>(FeatureEnum.class);
+        for (String feature : args[0].split(",")) {
+            String[] parts = feature.trim().split(":", 2);
+            EnumSet<HashEnum> hashEnums = EnumSet.noneOf(HashEnum.class);
+            if (parts.length > 1) {
+                for (String hash : parts[1].split("\\+")) {
+                    hashEnums.add(HashEnum.getByName(hash.trim()));
+                }
+            }
+            features.put(FeatureEnum.getByName(parts[0]), hashEnums);
+        }
+        int maxDimension = args.length > 2 ? Integer.parseInt(args[1]) : ImageMapper.MAX_IMAGE_DIMENSION;
+        ResamplingEnum resampling = args.length > 3 ? ResamplingEnum.getByName(args[2]) : ResamplingEnum.BILINEAR;
+        boolean subsampling = args.length > 4 && Boolean.parseBoolean(args[3]);
+        byte[] content = Files.readAllBytes(Paths.get(args[args.length - 1]));
+
+        Map<FeatureEnum, ExtractedFeature> extracted = new ImageFeatureExtractor(maxDimension, resampling, subsampling).extract(content, features);
+        System.out.println(toXContent(extracted, jsonBuilder()).string());
+    }
+}
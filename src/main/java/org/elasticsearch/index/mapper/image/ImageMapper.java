@@ -10,37 +10,54 @@ import net.semanticmetadata.lire.imageanalysis.features.Extractor;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.indexers.hashing.BitSampling;
 import net.semanticmetadata.lire.indexers.hashing.LocalitySensitiveHashing;
-import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.ElasticsearchGenerationException;
 import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.Base64;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
 import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.io.stream.ByteBufferStreamInput;
+import org.elasticsearch.common.lease.Releasable;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.mapper.*;
 import org.elasticsearch.index.mapper.MappedFieldType.Names;
+import org.elasticsearch.plugin.image.ImagePlugin;
 import org.elasticsearch.threadpool.ThreadPool;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.elasticsearch.index.mapper.MapperBuilders.binaryField;
 import static org.elasticsearch.index.mapper.MapperBuilders.stringField;
@@ -55,10 +72,28 @@ public class ImageMapper extends FieldMapper {
 
     public static final String CONTENT_TYPE = "image";
 
+    /** deadline of extracting all features of one image, documents taking longer fail */
+    public static final String EXTRACT_TIMEOUT_SETTING = "index.image.extract_timeout";
+    public static final TimeValue DEFAULT_EXTRACT_TIMEOUT = TimeValue.timeValueSeconds(30);
+
     public static final String HASH = "hash";
 
     public static final String FEATURE = "feature";
     public static final String METADATA = "metadata";
+    public static final String MAX_DIMENSION = "max_dimension";
+    public static final String RESAMPLING = "resampling";
+    public static final String SUBSAMPLING = "subsampling";
+    /** index LSH terms per hash function, see {@link LshMultiProbe} */
+    public static final String MULTI_PROBE = "multi_probe";
+    public static final String CONTENT = "content";
+
+    /** index images right away and leave extraction to {@link ImageBackfillService} */
+    public static final String DEFERRED_EXTRACTION_SETTING = "index.image.deferred_extraction";
+    public static final String PENDING = "pending";
+    public static final String PENDING_VALUE = "true";
+    /** set by the backfill in place of the features of images it cannot extract */
+    public static final String FAILED = "failed";
+    public static final String FAILED_VALUE = "true";
 
     public static final String BIT_SAMPLING_FILE = "/hash/LshBitSampling.obj";
     public static final String LSH_HASH_FILE = "/hash/lshHashFunctions.obj";
@@ -82,12 +117,24 @@ public class ImageMapper extends FieldMapper {
         }
     }
 
-    static final class ImageFieldType extends MappedFieldType {
-	
+    public static final class ImageFieldType extends MappedFieldType {
+
+        private int maxDimension = MAX_IMAGE_DIMENSION;
+
+        private ResamplingEnum resampling = ResamplingEnum.BILINEAR;
+
+        private boolean subsampling = false;
+
+        private boolean multiProbe = false;
+
         public ImageFieldType() {}
 
         protected ImageFieldType(ImageMapper.ImageFieldType ref) {
             super(ref);
+            this.maxDimension = ref.maxDimension;
+            this.resampling = ref.resampling;
+            this.subsampling = ref.subsampling;
+            this.multiProbe = ref.multiProbe;
         }
 
         @Override
@@ -95,6 +142,83 @@ public class ImageMapper extends FieldMapper {
             return new ImageMapper.ImageFieldType(this);
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (!super.equals(o)) return false;
+            ImageFieldType that = (ImageFieldType) o;
+            return maxDimension == that.maxDimension && resampling == that.resampling && subsampling == that.subsampling
+                    && multiProbe == that.multiProbe;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = super.hashCode();
+            result = 31 * result + maxDimension;
+            result = 31 * result + resampling.hashCode();
+            result = 31 * result + (subsampling ? 1 : 0);
+            result = 31 * result + (multiProbe ? 1 : 0);
+            return result;
+        }
+
+        @Override
+        public void checkCompatibility(MappedFieldType fieldType, List<String> conflicts, boolean strict) {
+            super.checkCompatibility(fieldType, conflicts, strict);
+            ImageFieldType other = (ImageFieldType) fieldType;
+            if (maxDimension != other.maxDimension || resampling != other.resampling || subsampling != other.subsampling) {
+                conflicts.add("mapper [" + names().fullName() + "] has different [" + MAX_DIMENSION + "], [" + RESAMPLING + "] or ["
+                        + SUBSAMPLING + "] values");
+            }
+            if (multiProbe != other.multiProbe) {
+                conflicts.add("mapper [" + names().fullName() + "] has different [" + MULTI_PROBE + "] values");
+            }
+        }
+
+        /**
+         * Longest side images are shrunk to before extraction, at index and query time
+         */
+        public int maxDimension() {
+            return maxDimension;
+        }
+
+        public void setMaxDimension(int maxDimension) {
+            checkIfFrozen();
+            this.maxDimension = maxDimension;
+        }
+
+        public ResamplingEnum resampling() {
+            return resampling;
+        }
+
+        public void setResampling(ResamplingEnum resampling) {
+            checkIfFrozen();
+            this.resampling = resampling;
+        }
+
+        /**
+         * Whether large images are decoded with source subsampling, off unless mapped as their features differ from
+         * those of the fully decoded image
+         */
+        public boolean subsampling() {
+            return subsampling;
+        }
+
+        public void setSubsampling(boolean subsampling) {
+            checkIfFrozen();
+            this.subsampling = subsampling;
+        }
+
+        /**
+         * Whether LSH terms are indexed per hash function, which queries need to probe neighbouring buckets
+         */
+        public boolean multiProbe() {
+            return multiProbe;
+        }
+
+        public void setMultiProbe(boolean multiProbe) {
+            checkIfFrozen();
+            this.multiProbe = multiProbe;
+        }
+
         @Override
         public String typeName() {
             return CONTENT_TYPE;
@@ -109,13 +233,19 @@ public class ImageMapper extends FieldMapper {
 
         private ThreadPool threadPool;
 
+        private PixelBudget pixelBudget;
+
+        private ExtractionCache extractionCache;
+
         private Map<FeatureEnum, Map<String, Object>> features = Maps.newHashMap();
 
         private Map<String, FieldMapper.Builder<Builder, ImageMapper>> metadataBuilders = Maps.newHashMap();
 
-        public Builder(String name, ThreadPool threadPool) {
+        public Builder(String name, ThreadPool threadPool, PixelBudget pixelBudget, ExtractionCache extractionCache) {
             super(name, new ImageFieldType(), new ImageFieldType());
             this.threadPool = threadPool;
+            this.pixelBudget = pixelBudget;
+            this.extractionCache = extractionCache;
             this.builder = this;
         }
 
@@ -124,11 +254,39 @@ public class ImageMapper extends FieldMapper {
             return this;
         }
 
+        public Builder maxDimension(int maxDimension) {
+            ((ImageFieldType) fieldType).setMaxDimension(maxDimension);
+            return this;
+        }
+
+        public Builder resampling(ResamplingEnum resampling) {
+            ((ImageFieldType) fieldType).setResampling(resampling);
+            return this;
+        }
+
+        public Builder subsampling(boolean subsampling) {
+            ((ImageFieldType) fieldType).setSubsampling(subsampling);
+            return this;
+        }
+
+        public Builder multiProbe(boolean multiProbe) {
+            ((ImageFieldType) fieldType).setMultiProbe(multiProbe);
+            return this;
+        }
+
         public Builder addMetadata(String metadata, FieldMapper.Builder<Builder, ImageMapper> metadataBuilder) {
             this.metadataBuilders.put(metadata, metadataBuilder);
             return this;
         }
 
+        Map<FeatureEnum, Map<String, Object>> features() {
+            return features;
+        }
+
+        ImageFieldType imageFieldType() {
+            return (ImageFieldType) fieldType;
+        }
+
         @Override
         @SuppressWarnings("unchecked")
         public ImageMapper build(BuilderContext context) {
@@ -173,7 +331,7 @@ public class ImageMapper extends FieldMapper {
             
             fieldType.setNames(new Names(name));
             
-            return new ImageMapper(name, threadPool, context.indexSettings(), features, featureMappers, hashMappers, metadataMappers,
+            return new ImageMapper(name, threadPool, pixelBudget, extractionCache, context.indexSettings(), features, featureMappers, hashMappers, metadataMappers,
         	    fieldType, defaultFieldType, multiFieldsBuilder.build(this, context), copyTo);
         }
 
@@ -189,28 +347,84 @@ public class ImageMapper extends FieldMapper {
 	
         private ThreadPool threadPool;
 
-        public TypeParser() { }
+        private PixelBudget pixelBudget;
+
+        private ExtractionCache extractionCache;
 
-        public TypeParser(ThreadPool threadPool) {
+        /**
+         * Node services are injected once the node is built, mappings are only parsed afterwards
+         */
+        @Inject
+        public void setThreadPool(ThreadPool threadPool) {
             this.threadPool = threadPool;
         }
 
+        @Inject
+        public void setPixelBudget(PixelBudget pixelBudget) {
+            this.pixelBudget = pixelBudget;
+        }
+
+        @Inject
+        public void setExtractionCache(ExtractionCache extractionCache) {
+            this.extractionCache = extractionCache;
+        }
+
         @Override
         @SuppressWarnings("unchecked")
         public Mapper.Builder<Builder, ImageMapper> parse(String name, Map<String, Object> node, ParserContext parserContext) throws MapperParsingException {
 
-            ImageMapper.Builder builder = new ImageMapper.Builder(name, threadPool);
+            ImageMapper.Builder builder = new ImageMapper.Builder(name, threadPool, pixelBudget, extractionCache);
+            Map<String, Object> metadatas = parseImageParameters(builder, node);
+
+            // process metadata
+            for (Map.Entry<String, Object> entry : metadatas.entrySet()) {
+                String metadataName = entry.getKey();
+                Map<String, Object> metadataMap = (Map<String, Object>) entry.getValue();
+                String fieldType = (String) metadataMap.get("type");
+                builder.addMetadata(metadataName, (FieldMapper.Builder<Builder, ImageMapper>) parserContext.typeParser(fieldType).parse(metadataName, metadataMap, parserContext));
+            }
+            
+            return builder;
+        }
+
+        /**
+         * Parse the features, max dimension, resampling, subsampling and multi probe of the field node into the builder, removing them from the node.
+         * Shared with {@link ImageBulkExtractionFilter} so both extract with the same settings
+         * @return the metadata node, parsed by the caller
+         */
+        @SuppressWarnings("unchecked")
+        static Map<String, Object> parseImageParameters(ImageMapper.Builder builder, Map<String, Object> node) {
             Map<String, Object> features = Maps.newHashMap();
             Map<String, Object> metadatas = Maps.newHashMap();
 
-            for (Map.Entry<String, Object> entry : node.entrySet()) {
+            // parameters are removed once parsed, indices created on 2.x reject those left in the node
+            for (Iterator<Map.Entry<String, Object>> iterator = node.entrySet().iterator(); iterator.hasNext();) {
+                Map.Entry<String, Object> entry = iterator.next();
                 String fieldName = entry.getKey();
                 Object fieldNode = entry.getValue();
 
                 if (FEATURE.equals(fieldName)) {
-                   features = (Map<String, Object>) fieldNode;
+                    features = (Map<String, Object>) fieldNode;
+                    iterator.remove();
                 } else if (METADATA.equals(fieldName)) {
                     metadatas = (Map<String, Object>) fieldNode;
+                    iterator.remove();
+                } else if (MAX_DIMENSION.equals(fieldName)) {
+                    int maxDimension = XContentMapValues.nodeIntegerValue(fieldNode);
+                    if (maxDimension <= 0) {
+                        throw new MapperParsingException("[" + MAX_DIMENSION + "] must be positive, got [" + maxDimension + "]");
+                    }
+                    builder.maxDimension(maxDimension);
+                    iterator.remove();
+                } else if (RESAMPLING.equals(fieldName)) {
+                    builder.resampling(ResamplingEnum.getByName(fieldNode.toString()));
+                    iterator.remove();
+                } else if (SUBSAMPLING.equals(fieldName)) {
+                    builder.subsampling(XContentMapValues.nodeBooleanValue(fieldNode));
+                    iterator.remove();
+                } else if (MULTI_PROBE.equals(fieldName)) {
+                    builder.multiProbe(XContentMapValues.nodeBooleanValue(fieldNode));
+                    iterator.remove();
                 }
             }
             
@@ -247,16 +461,7 @@ public class ImageMapper extends FieldMapper {
                 builder.addFeature(featureEnum, featureMap);
             }
 
-
-            // process metadata
-            for (Map.Entry<String, Object> entry : metadatas.entrySet()) {
-                String metadataName = entry.getKey();
-                Map<String, Object> metadataMap = (Map<String, Object>) entry.getValue();
-                String fieldType = (String) metadataMap.get("type");
-                builder.addMetadata(metadataName, (FieldMapper.Builder<Builder, ImageMapper>) parserContext.typeParser(fieldType).parse(metadataName, metadataMap, parserContext));
-            }
-            
-            return builder;
+            return metadatas;
         }
     }
 
@@ -264,6 +469,10 @@ public class ImageMapper extends FieldMapper {
 
     private final ThreadPool threadPool;
 
+    private final PixelBudget pixelBudget;
+
+    private final ExtractionCache extractionCache;
+
     private final Settings settings;
 
     private volatile ImmutableOpenMap<FeatureEnum, Map<String, Object>> features = ImmutableOpenMap.of();
@@ -275,12 +484,14 @@ public class ImageMapper extends FieldMapper {
     private volatile ImmutableOpenMap<String, FieldMapper> metadataMappers = ImmutableOpenMap.of();
 
 
-    public ImageMapper(String name, ThreadPool threadPool, Settings indexSettings, Map<FeatureEnum, Map<String, Object>> features, Map<String, FieldMapper> featureMappers,
+    public ImageMapper(String name, ThreadPool threadPool, PixelBudget pixelBudget, ExtractionCache extractionCache, Settings indexSettings, Map<FeatureEnum, Map<String, Object>> features, Map<String, FieldMapper> featureMappers,
                        Map<String, FieldMapper> hashMappers, Map<String, FieldMapper> metadataMappers,
                        MappedFieldType type, MappedFieldType defaultFieldType,MultiFields multiFields, CopyTo copyTo) {
         super(name, type, defaultFieldType, indexSettings, multiFields, copyTo);
         this.name = name;
         this.threadPool = threadPool;
+        this.pixelBudget = pixelBudget;
+        this.extractionCache = extractionCache;
         this.settings = indexSettings;
         if (features != null) {
             this.features = ImmutableOpenMap.builder(this.features).putAll(features).build();
@@ -301,6 +512,11 @@ public class ImageMapper extends FieldMapper {
         return name;
     }
 
+    @Override
+    public ImageFieldType fieldType() {
+        return (ImageFieldType) super.fieldType();
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public Mapper parse(ParseContext context) throws IOException {
@@ -308,70 +524,111 @@ public class ImageMapper extends FieldMapper {
 
         XContentParser parser = context.parser();
         XContentParser.Token token = parser.currentToken();
-        if (token == XContentParser.Token.VALUE_STRING) {
-            content = parser.binaryValue();
-        }
-
-        if (content == null) {
+        if (token == XContentParser.Token.VALUE_STRING || token == XContentParser.Token.VALUE_EMBEDDED_OBJECT) {
+            content = binaryValue(parser);
+        } else if (token == XContentParser.Token.START_OBJECT) {   // extracted by the client or by the backfill
+            content = parsePrecomputed(context, parser);
+            if (content == null) {   // no image to read metadata from
+                return null;
+            }
+        } else {
             throw new MapperParsingException("No content is provided.");
         }
 
-        final Boolean useThreadPool = settings.getAsBoolean("index.image.use_thread_pool", true);
         final Boolean ignoreMetadataError = settings.getAsBoolean("index.image.ignore_metadata_error", true);
 
-        BufferedImage img = ImageIO.read(new ByteBufferStreamInput(ByteBuffer.wrap(content)));
-        if (Math.max(img.getHeight(), img.getWidth()) > MAX_IMAGE_DIMENSION) {
-            img = ImageUtils.scaleImage(img, MAX_IMAGE_DIMENSION);
+        if (token == XContentParser.Token.VALUE_STRING) {
+            if (settings.getAsBoolean(DEFERRED_EXTRACTION_SETTING, false)) {
+                if (!context.docMapper().sourceMapper().isComplete()) {   // the backfill reindexes the doc from it
+                    throw new MapperParsingException("[" + DEFERRED_EXTRACTION_SETTING + "] needs the whole _source of [" + name + "]");
+                }
+                if (ImageDecoder.pixels(content, fieldType().maxDimension(), fieldType().resampling(), fieldType().subsampling()) < 0) {   // fail now rather than in the backfill
+                    throw new MapperParsingException("Unsupported image format");
+                }
+                // searchable without features until ImageBackfillService extracts them
+                context.doc().add(new StringField(name() + "." + PENDING, PENDING_VALUE, Field.Store.NO));
+            } else {
+                index(context, extractFeatures(content));
+            }
         }
-        
-        final BufferedImage finalImg = img;
-
-        final Map<FeatureEnum, LireFeature> featureExtractMap = new MapMaker().makeMap();
 
-        // have multiple features, use ThreadPool to process each feature
-        if (useThreadPool && features.size() > 1) {
-            final CountDownLatch latch = new CountDownLatch(features.size());
-            Executor executor = threadPool.generic();
-
-            for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
-                final FeatureEnum featureEnum = cursor.key;
-                executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
-                            ((Extractor)lireFeature).extract(finalImg);
-                            featureExtractMap.put(featureEnum, lireFeature);
-                        } catch (Throwable e){
-                            logger.error("Failed to extract feature from image", e);
-                        } finally {
-                            latch.countDown();
+        // process metadata if required
+        if (!metadataMappers.isEmpty()) {
+            try {
+                Metadata metadata = ImageMetadataReader.readMetadata(new ByteBufferStreamInput(ByteBuffer.wrap(content)));
+                for (Directory directory : metadata.getDirectories()) {
+                    for (Tag tag : directory.getTags()) {
+                        String metadataName = tag.getDirectoryName().toLowerCase().replaceAll("\\s+", "_") + "." +
+                                tag.getTagName().toLowerCase().replaceAll("\\s+", "_");
+                        if (metadataMappers.containsKey(metadataName)) {
+                            FieldMapper mapper = metadataMappers.get(metadataName);
+                            mapper.parse(context.createExternalValueContext(tag.getDescription()));
                         }
                     }
-                });
+                }
+            } catch (ImageProcessingException e) {
+                logger.error("Failed to extract metadata from image", e);
+                if (!ignoreMetadataError) {
+                    throw new ElasticsearchImageProcessException("Failed to extract metadata from image", e);
+                }
             }
-            try {
-                latch.await();
-            } catch (InterruptedException e) {
-                logger.debug("Interrupted extract feature from image", e);
-                Thread.currentThread().interrupt();
+        }
+
+        return null;
+    }
+    
+    /**
+     * Features of the image, from the extraction cache or extracted within the pixel budget and the extraction timeout
+     */
+    Map<FeatureEnum, ExtractedFeature> extractFeatures(byte[] content) throws IOException {
+        final Boolean useThreadPool = settings.getAsBoolean("index.image.use_thread_pool", true);
+        // not getAsTime, which asserts that index time settings are known to the index upgrade service
+        final TimeValue extractTimeout = TimeValue.parseTimeValue(settings.get(EXTRACT_TIMEOUT_SETTING), DEFAULT_EXTRACT_TIMEOUT,
+                EXTRACT_TIMEOUT_SETTING.substring("index.".length()));
+        final long deadline = System.nanoTime() + extractTimeout.nanos();
+
+        final int maxDimension = fieldType().maxDimension();
+        final ResamplingEnum resampling = fieldType().resampling();
+        final boolean subsampling = fieldType().subsampling();
+        final Map<FeatureEnum, ExtractedFeature> extracted = new MapMaker().makeMap();
+
+        // images seen before are neither decoded nor extracted again
+        String digest = null;
+        if (extractionCache != null && extractionCache.enabled()) {
+            digest = ExtractionCache.digest(content);
+            for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
+                ExtractedFeature cached = extractionCache.get(ExtractionCache.key(digest, maxDimension, resampling, subsampling, cursor.key,
+                        mappedHashes(cursor.value)));
+                if (cached != null) {
+                    extracted.put(cursor.key, cached);
+                }
             }
         }
 
+        if (extracted.size() < features.size()) {
+            extract(content, maxDimension, resampling, subsampling, extracted, useThreadPool, extractTimeout, deadline);
+            if (digest != null) {
+                for (Map.Entry<FeatureEnum, ExtractedFeature> entry : extracted.entrySet()) {
+                    extractionCache.put(ExtractionCache.key(digest, maxDimension, resampling, subsampling, entry.getKey(),
+                            mappedHashes(features.get(entry.getKey()))), entry.getValue());
+                }
+            }
+        }
+        return extracted;
+    }
 
+    /**
+     * Add the features and their mapped hashes to the document
+     */
+    @SuppressWarnings("unchecked")
+    private void index(ParseContext context, Map<FeatureEnum, ExtractedFeature> extracted) {
         for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
             FeatureEnum featureEnum = cursor.key;
             Map<String, Object> featureMap = cursor.value;
 
             try {
-                LireFeature lireFeature;
-                if (featureExtractMap.containsKey(featureEnum)) {   // already processed
-                    lireFeature = featureExtractMap.get(featureEnum);
-                } else {
-                    lireFeature = featureEnum.getFeatureClass().newInstance();
-                    ((Extractor)lireFeature).extract(img);
-                }
-                byte[] parsedContent = lireFeature.getByteArrayRepresentation();
+                ExtractedFeature feature = extracted.get(featureEnum);
+                byte[] parsedContent = feature.representation();
 
                 FieldMapper featureMapper = featureMappers.get(featureEnum.name());
                 featureMapper.parse(context.createExternalValueContext(parsedContent));
@@ -382,50 +639,338 @@ public class ImageMapper extends FieldMapper {
                     List<String> hashes = (List<String>) featureMap.get(HASH);
                     for (String h : hashes) {
                         HashEnum hashEnum = HashEnum.valueOf(h);
-                        int[] hashVals = null;
-                        if (hashEnum.equals(HashEnum.BIT_SAMPLING)) {
-                            hashVals = BitSampling.generateHashes(lireFeature.getFeatureVector());
-                        } else if (hashEnum.equals(HashEnum.LSH)) {
-                            hashVals = LocalitySensitiveHashing.generateHashes(lireFeature.getFeatureVector());
-                        }
+                        int[] hashVals = feature.hashes(hashEnum);
 
                         String mapperName = featureEnum.name() + "." + HASH + "." + h;
                         FieldMapper hashMapper = hashMappers.get(mapperName);
 
-                        hashMapper.parse(context.createExternalValueContext(SerializationUtils.arrayToString(hashVals)));
+                        String value = hashEnum == HashEnum.LSH && fieldType().multiProbe()
+                                ? LshMultiProbe.value(hashVals) : SerializationUtils.arrayToString(hashVals);
+                        hashMapper.parse(context.createExternalValueContext(value));
                     }
                 }
-                
+
             } catch (Exception e) {
                 throw new ElasticsearchImageProcessException("Failed to index feature " + featureEnum.name(), e);
             }
         }
+    }
 
-        // process metadata if required
-        if (!metadataMappers.isEmpty()) {
+    /**
+     * Read features extracted outside the cluster, e.g. by {@link ImageFeatureExtractor}, as
+     * <code>{"CEDD": {"feature": "base64", "hash": {"BIT_SAMPLING": [...]}}, ...}</code>, with the image itself under
+     * <code>content</code> when it should be kept for metadata. Every mapped feature is required, hashes are optional
+     * and computed from the feature when missing. Given hashes must be those of the feature, only mapped hashes are
+     * kept. Images the backfill could not extract come with <code>failed</code> and no features, they are only marked.
+     * Returns the image, null if not given
+     */
+    private byte[] parsePrecomputed(ParseContext context, XContentParser parser) throws IOException {
+        Map<FeatureEnum, ExtractedFeature> extracted = Maps.newHashMap();
+        byte[] content = null;
+        boolean failed = false;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token != XContentParser.Token.FIELD_NAME) {
+                throw new MapperParsingException("Malformed precomputed features of [" + name + "]");
+            }
+            if (CONTENT.equals(parser.currentName())) {
+                parser.nextToken();
+                content = binaryValue(parser);
+                continue;
+            }
+            if (FAILED.equals(parser.currentName())) {   // reason, only kept in _source
+                parser.nextToken();
+                parser.skipChildren();
+                failed = true;
+                continue;
+            }
+            FeatureEnum featureEnum;
             try {
-                Metadata metadata = ImageMetadataReader.readMetadata(new ByteBufferStreamInput(ByteBuffer.wrap(content)));
-                for (Directory directory : metadata.getDirectories()) {
-                    for (Tag tag : directory.getTags()) {
-                        String metadataName = tag.getDirectoryName().toLowerCase().replaceAll("\\s+", "_") + "." +
-                                tag.getTagName().toLowerCase().replaceAll("\\s+", "_");
-                        if (metadataMappers.containsKey(metadataName)) {
-                            FieldMapper mapper = metadataMappers.get(metadataName);
-                            mapper.parse(context.createExternalValueContext(tag.getDescription()));
+                featureEnum = FeatureEnum.getByName(parser.currentName());
+            } catch (IllegalArgumentException e) {
+                throw new MapperParsingException("Unknown feature [" + parser.currentName() + "]");
+            }
+            if (!features.containsKey(featureEnum)) {
+                throw new MapperParsingException("Feature [" + featureEnum.name() + "] is not mapped in [" + name + "]");
+            }
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                throw new MapperParsingException("Malformed precomputed feature [" + featureEnum.name() + "]");
+            }
+
+            byte[] representation = null;
+            int[][] hashes = new int[HashEnum.values().length][];
+            String currentFieldName = null;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else if (FEATURE.equals(currentFieldName)) {
+                    representation = binaryValue(parser);
+                } else if (HASH.equals(currentFieldName) && token == XContentParser.Token.START_OBJECT) {
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                        HashEnum hashEnum;
+                        try {
+                            hashEnum = HashEnum.getByName(parser.currentName());
+                        } catch (IllegalArgumentException e) {
+                            throw new MapperParsingException("Unknown hash [" + parser.currentName() + "] of precomputed feature [" + featureEnum.name() + "]");
+                        }
+                        if (parser.nextToken() != XContentParser.Token.START_ARRAY) {
+                            throw new MapperParsingException("Hash [" + hashEnum.name() + "] of precomputed feature [" + featureEnum.name() + "] must be an array");
                         }
+                        List<Object> values = parser.list();
+                        int[] hash = new int[values.size()];
+                        for (int i = 0; i < hash.length; i++) {
+                            if (!(values.get(i) instanceof Number)) {
+                                throw new MapperParsingException("Hash [" + hashEnum.name() + "] of precomputed feature [" + featureEnum.name() + "] must be numeric, got [" + values.get(i) + "]");
+                            }
+                            hash[i] = ((Number) values.get(i)).intValue();
+                        }
+                        hashes[hashEnum.ordinal()] = hash;
                     }
+                } else {
+                    throw new MapperParsingException("Precomputed feature [" + featureEnum.name() + "] does not support [" + currentFieldName + "]");
                 }
-            } catch (ImageProcessingException e) {
-                logger.error("Failed to extract metadata from image", e);
-                if (!ignoreMetadataError) {
-                    throw new ElasticsearchImageProcessException("Failed to extract metadata from image", e);
+            }
+            if (representation == null) {
+                throw new MapperParsingException("No [" + FEATURE + "] for precomputed feature [" + featureEnum.name() + "]");
+            }
+
+            // must deserialize like the feature, which also gives the vector for the hashes
+            LireFeature lireFeature;
+            try {
+                lireFeature = featureEnum.getFeatureClass().newInstance();
+                lireFeature.setByteArrayRepresentation(representation);
+            } catch (Exception e) {
+                throw new MapperParsingException("Invalid precomputed feature [" + featureEnum.name() + "]", e);
+            }
+            // hashes are cheap next to extraction, recompute them rather than trust the client's
+            int[][] mappedHashes = new int[HashEnum.values().length][];
+            for (HashEnum hashEnum : mappedHashes(features.get(featureEnum))) {
+                int[] hash = ExtractedFeature.generateHashes(hashEnum, lireFeature.getFeatureVector());
+                if (hashes[hashEnum.ordinal()] != null && !Arrays.equals(hashes[hashEnum.ordinal()], hash)) {
+                    throw new MapperParsingException("Hash [" + hashEnum.name() + "] of precomputed feature [" + featureEnum.name()
+                            + "] does not match the feature, it must be computed with the hash functions of the plugin");
                 }
+                mappedHashes[hashEnum.ordinal()] = hash;
             }
+            extracted.put(featureEnum, new ExtractedFeature(representation, mappedHashes));
         }
 
-        return null;
+        if (failed) {
+            context.doc().add(new StringField(name() + "." + FAILED, FAILED_VALUE, Field.Store.NO));
+            return content;
+        }
+        for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
+            if (!extracted.containsKey(cursor.key)) {
+                throw new MapperParsingException("Missing precomputed feature [" + cursor.key.name() + "]");
+            }
+        }
+        index(context, extracted);
+        return content;
     }
-    
+
+    /**
+     * Binary value of the current token. Sources rewritten from a map by the bulk filter or the backfill are in the index
+     * content type, where base64 strings are not decoded by the parser as they are in json
+     */
+    private static byte[] binaryValue(XContentParser parser) throws IOException {
+        if (parser.currentToken() == XContentParser.Token.VALUE_STRING && parser.contentType() != XContentType.JSON) {
+            return Base64.decode(parser.text());
+        }
+        return parser.binaryValue();
+    }
+
+    /**
+     * Decode the image and extract the features missing from <code>extracted</code>. Features are extracted on the extract
+     * pool, waiting at most until the deadline, or on this thread when the pool is not used, checking the deadline after
+     * each feature. Decoding is aborted once the deadline passed. After a timeout the tasks not started yet are cancelled,
+     * the pixel budget is held until the running ones are done
+     */
+    private void extract(byte[] content, int maxDimension, ResamplingEnum resampling, boolean subsampling,
+                         final Map<FeatureEnum, ExtractedFeature> extracted, boolean useThreadPool, TimeValue extractTimeout,
+                         long deadline) throws IOException {
+        long pixels = ImageDecoder.pixels(content, maxDimension, resampling, subsampling);
+        if (pixels < 0) {
+            throw new MapperParsingException("Unsupported image format");
+        }
+
+        Releasable admission = null;
+        if (pixelBudget != null) {
+            try {
+                admission = pixelBudget.admit(pixels, "image extraction [" + name + "]");
+            } catch (EsRejectedExecutionException e) {
+                throw new ImageRejectedException(e);
+            }
+        }
+        final SharedRelease release = new SharedRelease(admission);
+        try {
+            // packed RGB, only read by the extractors so one copy is shared by all features and threads
+            final BufferedImage img;
+            try {
+                img = ImageDecoder.decode(content, maxDimension, resampling, subsampling, deadline);
+            } catch (ElasticsearchTimeoutException e) {
+                throw new MapperParsingException("Failed to extract features of image within [" + extractTimeout + "]", e);
+            }
+            if (img == null) {
+                throw new MapperParsingException("Failed to decode image");
+            }
+            checkDeadline(deadline, extractTimeout);
+
+            List<FeatureEnum> missing = Lists.newArrayList();
+            for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
+                if (!extracted.containsKey(cursor.key)) {
+                    missing.add(cursor.key);
+                }
+            }
+
+            if (useThreadPool && !missing.isEmpty()) {
+                final CountDownLatch latch = new CountDownLatch(missing.size());
+                Executor executor = threadPool.executor(ImagePlugin.EXTRACT_THREAD_POOL);
+                List<ExtractTask> tasks = Lists.newArrayListWithCapacity(missing.size());
+
+                for (final FeatureEnum featureEnum : missing) {
+                    final Set<HashEnum> hashEnums = mappedHashes(features.get(featureEnum));
+                    ExtractTask task = new ExtractTask(latch, release.acquire(), new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+                                ((Extractor)lireFeature).extract(img);
+                                extracted.put(featureEnum, ExtractedFeature.of(lireFeature, hashEnums));
+                            } catch (Throwable e){
+                                logger.error("Failed to extract feature from image", e);
+                            }
+                        }
+                    });
+                    try {
+                        executor.execute(task);
+                        tasks.add(task);
+                    } catch (EsRejectedExecutionException e) {
+                        task.cancel(executor);   // pool saturated, extracted on this thread below
+                    }
+                }
+                boolean done = false;
+                try {
+                    done = latch.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    logger.debug("Interrupted extract feature from image", e);
+                    Thread.currentThread().interrupt();
+                }
+                if (!done) {   // running tasks keep the pixel budget until they are done, the others are cancelled
+                    for (ExtractTask task : tasks) {
+                        task.cancel(executor);
+                    }
+                    throw new MapperParsingException("Failed to extract features of image within [" + extractTimeout + "]");
+                }
+            }
+
+            for (FeatureEnum featureEnum : missing) {
+                if (extracted.containsKey(featureEnum)) {   // already processed
+                    continue;
+                }
+                try {
+                    LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+                    ((Extractor)lireFeature).extract(img);
+                    extracted.put(featureEnum, ExtractedFeature.of(lireFeature, mappedHashes(features.get(featureEnum))));
+                } catch (Exception e) {
+                    throw new ElasticsearchImageProcessException("Failed to index feature " + featureEnum.name(), e);
+                }
+                checkDeadline(deadline, extractTimeout);
+            }
+        } finally {
+            release.close();
+        }
+    }
+
+    /**
+     * Hashes mapped for a feature, given as one name or a list of names
+     */
+    @SuppressWarnings("unchecked")
+    static Set<HashEnum> mappedHashes(Map<String, Object> featureMap) {
+        Set<HashEnum> hashEnums = EnumSet.noneOf(HashEnum.class);
+        Object hashVal = featureMap == null ? null : featureMap.get(HASH);
+        if (hashVal instanceof List) {
+            for (Object h : (List<Object>) hashVal) {
+                hashEnums.add(HashEnum.valueOf(h.toString()));
+            }
+        } else if (hashVal != null) {
+            hashEnums.add(HashEnum.valueOf(hashVal.toString()));
+        }
+        return hashEnums;
+    }
+
+    private static void checkDeadline(long deadline, TimeValue extractTimeout) {
+        if (System.nanoTime() - deadline > 0) {
+            throw new MapperParsingException("Failed to extract features of image within [" + extractTimeout + "]");
+        }
+    }
+
+    /**
+     * Extraction of one feature on the extract pool. Either it runs or it is cancelled before it started, whichever
+     * comes first counts down the latch and releases its share of the pixel budget, once the task is done
+     */
+    private static final class ExtractTask extends FutureTask<Void> {
+        private final CountDownLatch latch;
+        private final Releasable release;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        ExtractTask(CountDownLatch latch, Releasable release, Runnable extraction) {
+            super(extraction, null);
+            this.latch = latch;
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {   // cancelled before it started
+                return;
+            }
+            try {
+                super.run();
+            } finally {
+                latch.countDown();
+                release.close();
+            }
+        }
+
+        /**
+         * Cancel the task if it did not start yet and drop it from the queue of the pool, no-op otherwise
+         */
+        void cancel(Executor executor) {
+            if (claimed.compareAndSet(false, true)) {
+                cancel(false);
+                if (executor instanceof ThreadPoolExecutor) {
+                    ((ThreadPoolExecutor) executor).remove(this);
+                }
+                latch.countDown();
+                release.close();
+            }
+        }
+    }
+
+    /**
+     * Admission shared by the indexing thread and the extraction tasks of one image, closed by the last of them
+     */
+    private static final class SharedRelease implements Releasable {
+        private final Releasable admission;
+        private final AtomicInteger holders = new AtomicInteger(1);
+
+        SharedRelease(Releasable admission) {
+            this.admission = admission;
+        }
+
+        Releasable acquire() {
+            holders.incrementAndGet();
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (holders.decrementAndGet() == 0 && admission != null) {
+                admission.close();
+            }
+        }
+    }
+
     @Override
     protected void parseCreateField(ParseContext parseContext, List<Field> fields) throws IOException {
 
@@ -441,6 +986,18 @@ public class ImageMapper extends FieldMapper {
         builder.startObject(name);
 
         builder.field("type", CONTENT_TYPE);
+        if (fieldType().maxDimension() != MAX_IMAGE_DIMENSION) {
+            builder.field(MAX_DIMENSION, fieldType().maxDimension());
+        }
+        if (fieldType().resampling() != ResamplingEnum.BILINEAR) {
+            builder.field(RESAMPLING, fieldType().resampling().name().toLowerCase());
+        }
+        if (fieldType().subsampling()) {
+            builder.field(SUBSAMPLING, true);
+        }
+        if (fieldType().multiProbe()) {
+            builder.field(MULTI_PROBE, true);
+        }
 
         builder.startObject(FEATURE);
         for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
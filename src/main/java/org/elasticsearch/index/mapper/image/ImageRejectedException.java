@@ -0,0 +1,23 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Image of a document rejected by the {@link PixelBudget}. Document parsing wraps every other exception
+ * into a 400 {@link MapperParsingException}, this one passes through as is and keeps the 429 of the rejection
+ * so that clients back off and retry
+ */
+@SuppressWarnings("serial")
+public class ImageRejectedException extends MapperParsingException {
+
+    public ImageRejectedException(EsRejectedExecutionException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public RestStatus status() {
+        return RestStatus.TOO_MANY_REQUESTS;
+    }
+}
@@ -0,0 +1,124 @@
+package org.elasticsearch.index.mapper.image;
+
+import net.semanticmetadata.lire.indexers.hashing.LocalitySensitiveHashing;
+import org.elasticsearch.ElasticsearchImageProcessException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * {@link LocalitySensitiveHashing} terms of fields mapped with <code>multi_probe</code>, the bucket of each hash function
+ * is indexed with the function, <code>function_bucket</code>, so a neighbouring bucket of a function can be probed at query time.
+ * Hash functions are read from the same file as {@link LocalitySensitiveHashing}, which keeps them private
+ */
+public class LshMultiProbe {
+
+    private static final double[][] hashA;
+
+    private static final double[] hashB;
+
+    static {
+        try (InputStream in = LshMultiProbe.class.getResourceAsStream(ImageMapper.LSH_HASH_FILE);
+             ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(in))) {
+            int dimensions = ois.readInt();
+            int numFunctionBundles = ois.readInt();
+            hashB = new double[numFunctionBundles];
+            for (int i = 0; i < numFunctionBundles; i++) {
+                hashB[i] = ois.readFloat();
+            }
+            hashA = new double[numFunctionBundles][dimensions];
+            for (double[] a : hashA) {
+                for (int j = 0; j < a.length; j++) {
+                    a[j] = ois.readFloat();
+                }
+            }
+        } catch (IOException e) {
+            throw new ElasticsearchImageProcessException("Failed to initialize hash function", e);
+        }
+    }
+
+    /**
+     * Term of a bucket of a hash function, negative buckets are written <code>n</code> and the absolute value
+     * as the standard analyzer splits terms on <code>-</code>
+     */
+    static String term(int function, int bucket) {
+        return bucket < 0 ? function + "_n" + (-(long) bucket) : function + "_" + bucket;
+    }
+
+    /**
+     * Terms of the hashes of {@link LocalitySensitiveHashing#generateHashes(double[])}, one per hash function
+     */
+    public static String[] terms(int[] hashes) {
+        String[] terms = new String[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            terms[i] = term(i, hashes[i]);
+        }
+        return terms;
+    }
+
+    /**
+     * Value of the hash field, the terms separated by spaces
+     */
+    public static String value(int[] hashes) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < hashes.length; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(term(i, hashes[i]));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Terms of the buckets of the vector, the same as {@link #terms(int[])} of {@link LocalitySensitiveHashing#generateHashes(double[])},
+     * followed by <code>probes</code> neighbouring buckets, those whose boundary is closest to the vector first.
+     * At most two neighbours per hash function are probed
+     */
+    public static String[] probeTerms(double[] vector, int probes) {
+        int numFunctionBundles = hashA.length;
+        int[] hashes = new int[numFunctionBundles];
+        final double[] distances = new double[numFunctionBundles * 2];
+
+        for (int i = 0; i < numFunctionBundles; i++) {
+            double product = 0d;
+            for (int j = 0; j < vector.length; j++) {
+                product += vector[j] * hashA[i][j];
+            }
+            double position = (product + hashB[i]) / LocalitySensitiveHashing.binLength;
+            hashes[i] = (int) Math.floor(position);
+
+            double fraction = position - Math.floor(position);
+            distances[2 * i] = fraction;           // lower neighbour
+            distances[2 * i + 1] = 1 - fraction;   // upper neighbour
+        }
+
+        probes = Math.min(probes, distances.length);
+        if (probes <= 0) {
+            return terms(hashes);
+        }
+
+        Integer[] order = new Integer[distances.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(distances[a], distances[b]);
+            }
+        });
+
+        String[] terms = Arrays.copyOf(terms(hashes), numFunctionBundles + probes);
+        for (int p = 0; p < probes; p++) {
+            int function = order[p] / 2;
+            int bucket = order[p] % 2 == 0 ? hashes[function] - 1 : hashes[function] + 1;
+            terms[numFunctionBundles + p] = term(function, bucket);
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,65 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.plugin.image.ImageBreaker;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Node wide admission control for decoding and extracting images. Each image reserves its pixels from a budget shared
+ * by all concurrent decodes and charges an estimate of its rasters to the <code>image</code> circuit breaker.
+ * Images which do not fit are rejected right away rather than queued
+ */
+public class PixelBudget extends AbstractComponent {
+
+    public static final String MAX_PIXELS_SETTING = "image.extract.max_pixels";
+    public static final int DEFAULT_MAX_PIXELS = 64 * 1024 * 1024;
+
+    static final int BYTES_PER_PIXEL = 8;   // decoded raster plus the working copies made by the extractors
+
+    private final int maxPixels;
+    private final Semaphore available;
+    private final CircuitBreaker breaker;
+
+    @Inject
+    public PixelBudget(Settings settings, ImageBreaker imageBreaker) {
+        super(settings);
+        this.maxPixels = settings.getAsInt(MAX_PIXELS_SETTING, DEFAULT_MAX_PIXELS);
+        this.available = new Semaphore(maxPixels);
+        this.breaker = imageBreaker.breaker();
+    }
+
+    /**
+     * Reserve budget for an image of <code>pixels</code> pixels, close the returned releasable once done with the image.
+     * Images larger than the whole budget reserve all of it
+     */
+    public Releasable admit(long pixels, String label) {
+        final int permits = (int) Math.min(Math.max(pixels, 1), maxPixels);
+        if (!available.tryAcquire(permits)) {
+            throw new EsRejectedExecutionException("rejected " + label + " of [" + pixels + "] pixels, pixel budget ["
+                    + maxPixels + "] of concurrent image decoding is exhausted");
+        }
+
+        final long bytes = Math.max(pixels, 1) * BYTES_PER_PIXEL;
+        try {
+            breaker.addEstimateBytesAndMaybeBreak(bytes, label);
+        } catch (CircuitBreakingException e) {
+            available.release(permits);
+            throw new EsRejectedExecutionException("rejected " + label + ", " + e.getMessage());
+        }
+
+        return new Releasable() {
+            @Override
+            public void close() {
+                breaker.addWithoutBreaking(-bytes);
+                available.release(permits);
+            }
+        };
+    }
+}
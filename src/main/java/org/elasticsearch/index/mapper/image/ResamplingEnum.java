@@ -0,0 +1,97 @@
+package org.elasticsearch.index.mapper.image;
+
+import net.semanticmetadata.lire.utils.ImageUtils;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * How images larger than the <code>max_dimension</code> of their field are shrunk before extraction
+ */
+public enum ResamplingEnum {
+
+    /** fastest, aliases fine textures */
+    NEAREST {
+        @Override
+        BufferedImage resize(BufferedImage img, int width, int height) {
+            return draw(img, width, height, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        }
+    },
+
+    /** averages all source pixels of each target pixel, best for large reductions */
+    AREA_AVERAGE {
+        @Override
+        BufferedImage resize(BufferedImage img, int width, int height) {
+            BufferedImage target = new BufferedImage(width, height, type(img));
+            Graphics2D g = target.createGraphics();
+            try {
+                g.drawImage(img.getScaledInstance(width, height, Image.SCALE_AREA_AVERAGING), 0, 0, null);
+            } finally {
+                g.dispose();
+            }
+            return target;
+        }
+    },
+
+    /** single bilinear step, the historical behaviour */
+    BILINEAR {
+        @Override
+        BufferedImage scale(BufferedImage img, int maxDimension) {
+            return ImageUtils.scaleImage(img, maxDimension);
+        }
+
+        @Override
+        BufferedImage resize(BufferedImage img, int width, int height) {
+            return draw(img, width, height, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+    },
+
+    /** bilinear halving steps down to the target, close to area averaging at a fraction of its cost */
+    PROGRESSIVE_BILINEAR {
+        @Override
+        BufferedImage resize(BufferedImage img, int width, int height) {
+            while (img.getWidth() / 2 >= width && img.getHeight() / 2 >= height) {
+                img = draw(img, img.getWidth() / 2, img.getHeight() / 2, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            }
+            return draw(img, width, height, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+    };
+
+    /**
+     * Shrink the image so its longest side is <code>maxDimension</code>, smaller images are returned as is
+     */
+    BufferedImage scale(BufferedImage img, int maxDimension) {
+        int longest = Math.max(img.getWidth(), img.getHeight());
+        if (longest <= maxDimension) {
+            return img;
+        }
+        double factor = (double) maxDimension / longest;
+        int width = Math.max(1, (int) Math.round(img.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(img.getHeight() * factor));
+        return resize(img, width, height);
+    }
+
+    abstract BufferedImage resize(BufferedImage img, int width, int height);
+
+    static BufferedImage draw(BufferedImage img, int width, int height, Object interpolation) {
+        BufferedImage target = new BufferedImage(width, height, type(img));
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+            g.drawImage(img, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return target;
+    }
+
+    static int type(BufferedImage img) {
+        return img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+    }
+
+    public static ResamplingEnum getByName(String name) {
+        return valueOf(name.toUpperCase());
+    }
+}
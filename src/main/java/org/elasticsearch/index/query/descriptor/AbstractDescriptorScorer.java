@@ -1,14 +1,9 @@
 package org.elasticsearch.index.query.descriptor;
 
-import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
-import net.semanticmetadata.lire.utils.SerializationUtils;
-import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Weight;
-import org.apache.lucene.util.BytesRef;
-import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.index.mapper.descriptor.DescriptorEncoding;
 
 import java.io.IOException;
 
@@ -19,44 +14,17 @@ import static org.apache.lucene.search.DocIdSetIterator.NO_MORE_DOCS;
  * score = (1 / distance) * boost
  */
 public abstract class AbstractDescriptorScorer extends Scorer {
-    private final double[] descriptor;
-    private final IndexReader reader;
-    private final float boost;
-    private BinaryDocValues binaryDocValues;
-    private String fieldName;
+    private final DescriptorDocScorer docScorer;
 
-    protected AbstractDescriptorScorer(Weight weight, double[] descriptor, IndexReader reader, float boost, String fieldName) {
+    protected AbstractDescriptorScorer(Weight weight, double[] descriptor, DescriptorEncoding encoding, IndexReader reader, float boost, String fieldName) {
         super(weight);
-        this.descriptor = descriptor;
-        this.reader = reader;
-        this.boost = boost;
-        this.fieldName = fieldName;
+        this.docScorer = new DescriptorDocScorer(descriptor, encoding, reader, boost, fieldName);
     }
 
     @Override
     public float score() throws IOException {
         assert docID() != NO_MORE_DOCS;
-
-        if (binaryDocValues == null) {
-            LeafReader atomicReader = (LeafReader) reader;
-            binaryDocValues = atomicReader.getBinaryDocValues(fieldName);
-        }
-
-        try {
-            BytesRef bytesRef = binaryDocValues.get(docID());
-            double[] descriptor2 = SerializationUtils.toDoubleArray(bytesRef.bytes);
-
-            double distance = getDistance(descriptor, descriptor2);
-            double score;
-            if (Double.compare(distance, 1.0f) <= 0) { // distance less than 1, consider as same image
-                score = 2f - distance;
-            } else {
-                score = 1 / distance;
-            }
-            return (float)score * boost;
-        } catch (Exception e) {
-            throw new ElasticsearchImageProcessException("Failed to calculate score", e);
-        }
+        return docScorer.score(docID());
     }
 
     public static double getDistance(double[] d1, double[] d2) {
@@ -0,0 +1,53 @@
+package org.elasticsearch.index.query.descriptor;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.index.mapper.descriptor.DescriptorEncoding;
+import org.elasticsearch.index.query.image.FeatureMatrixCache;
+
+import java.io.IOException;
+
+/**
+ * Score arbitrary docs of a segment, used by scorers and by queries which pick the docs to score themselves
+ * score = (1 / distance) * boost
+ */
+final class DescriptorDocScorer {
+    private final double[] descriptor;
+    private final DescriptorEncoding encoding;
+    private final IndexReader reader;
+    private final float boost;
+    private final String fieldName;
+    private BinaryDocValues binaryDocValues;
+
+    DescriptorDocScorer(double[] descriptor, DescriptorEncoding encoding, IndexReader reader, float boost, String fieldName) {
+        this.descriptor = descriptor;
+        this.encoding = encoding;
+        this.reader = reader;
+        this.boost = boost;
+        this.fieldName = fieldName;
+    }
+
+    public float score(int doc) throws IOException {
+        if (binaryDocValues == null) {
+            LeafReader atomicReader = (LeafReader) reader;
+            binaryDocValues = FeatureMatrixCache.docValues(atomicReader, fieldName);
+        }
+
+        try {
+            BytesRef bytesRef = binaryDocValues.get(doc);
+            double distance = encoding.distance(descriptor, bytesRef);
+            double score;
+            if (Double.compare(distance, 1.0f) <= 0) { // distance less than 1, consider as same image
+                score = 2f - distance;
+            } else {
+                score = 1 / distance;
+            }
+            return (float)score * boost;
+        } catch (Exception e) {
+            throw new ElasticsearchImageProcessException("Failed to calculate score", e);
+        }
+    }
+}
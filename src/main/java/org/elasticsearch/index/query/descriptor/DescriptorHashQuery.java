@@ -2,8 +2,10 @@ package org.elasticsearch.index.query.descriptor;
 
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.ToStringUtils;
 import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.index.mapper.descriptor.DescriptorEncoding;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -14,12 +16,14 @@ public class DescriptorHashQuery extends Query {
 
     private final Term term;
     private double[] descriptor;
+    private DescriptorEncoding encoding;
     private String fieldName;
     private DescriptorScoreCache descriptorScoreCache;
 
-    public DescriptorHashQuery(Term t, double[] descriptor, float boost, String fieldName, DescriptorScoreCache descriptorScoreCache) {
+    public DescriptorHashQuery(Term t, double[] descriptor, DescriptorEncoding encoding, float boost, String fieldName, DescriptorScoreCache descriptorScoreCache) {
         this.term = t;
         this.descriptor = descriptor;
+        this.encoding = encoding;
         this.fieldName = fieldName;
         this.descriptorScoreCache = descriptorScoreCache;
         setBoost(boost);
@@ -77,7 +81,7 @@ public class DescriptorHashQuery extends Query {
             }
             PostingsEnum docs = termsEnum.postings( null);
             assert docs != null;
-            return new DescriptorHashScorer(this, docs, context.reader());
+            return new DescriptorHashScorer(this, docs, context.reader(), descriptorScoreCache.getScored(context));
         }
 
         private TermsEnum getTermsEnum(LeafReaderContext context) throws IOException {
@@ -124,12 +128,12 @@ public class DescriptorHashQuery extends Query {
     final class DescriptorHashScorer extends AbstractDescriptorScorer
     {
         private final PostingsEnum docsEnum;
-        private final IndexReader reader;
+        private final FixedBitSet scored;
 
-        DescriptorHashScorer(Weight weight, PostingsEnum td, IndexReader reader) {
-            super(weight, descriptor, reader, DescriptorHashQuery.this.getBoost(), fieldName);
+        DescriptorHashScorer(Weight weight, PostingsEnum td, IndexReader reader, FixedBitSet scored) {
+            super(weight, descriptor, encoding, reader, DescriptorHashQuery.this.getBoost(), fieldName);
             this.docsEnum = td;
-            this.reader = reader;
+            this.scored = scored;
         }
 
         @Override
@@ -140,16 +144,12 @@ public class DescriptorHashQuery extends Query {
         @Override
         public float score() throws IOException {
             assert docID() != DocIdSetIterator.NO_MORE_DOCS;
-            int docId = docID();
-            String cacheKey = reader.toString() + ":" + docId;
-            if (descriptorScoreCache.getScore(cacheKey) != null) {
+            if (scored.getAndSet(docID())) {
                 return 0f;  // BooleanScorer will add all score together, return 0 for docs already processed
             }
 
             try {
-                float score = super.score();
-                descriptorScoreCache.setScore(cacheKey, score);
-                return score;
+                return super.score();
             } catch (ElasticsearchImageProcessException e) {
                 return 0;
             }
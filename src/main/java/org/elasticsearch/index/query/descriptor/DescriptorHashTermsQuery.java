@@ -0,0 +1,122 @@
+package org.elasticsearch.index.query.descriptor;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.index.mapper.descriptor.DescriptorEncoding;
+import org.elasticsearch.index.mapper.descriptor.DescriptorMapper;
+import org.elasticsearch.index.query.image.HashTermPruning;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * All hash terms of a descriptor, rewritten to a {@link BooleanQuery} with one {@link DescriptorHashQuery}
+ * clause per hash term kept by {@link HashTermPruning}
+ */
+public class DescriptorHashTermsQuery extends Query {
+    private final String fieldName;
+    private final String[] hashTerms;
+    private final double[] descriptor;
+    private final DescriptorEncoding encoding;
+    private final HashTermPruning pruning;
+    private final int minCollisions;
+
+    /**
+     * @param hashTerms     terms of the hash field, see {@link org.elasticsearch.index.query.image.ImageHashCollisionQuery#hashTerms(int[])}
+     * @param minCollisions minimum number of hash terms a doc must share with the query to be scored
+     */
+    public DescriptorHashTermsQuery(String fieldName, String[] hashTerms, double[] descriptor, DescriptorEncoding encoding,
+                                    HashTermPruning pruning, int minCollisions, float boost) {
+        this.fieldName = fieldName;
+        this.hashTerms = hashTerms;
+        this.descriptor = descriptor;
+        this.encoding = encoding;
+        this.pruning = pruning;
+        this.minCollisions = minCollisions;
+        setBoost(boost);
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        Term[] terms = new Term[hashTerms.length];
+        for (int i = 0; i < hashTerms.length; i++) {
+            terms[i] = new Term(fieldName + '.' + DescriptorMapper.HASH, hashTerms[i]);
+        }
+
+        if (pruning.isEnabled()) {
+            int[] docFreqs = new int[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                docFreqs[i] = reader.docFreq(terms[i]);
+            }
+            int[] selected = pruning.select(docFreqs, reader.maxDoc());
+            Term[] selectedTerms = new Term[selected.length];
+            for (int i = 0; i < selected.length; i++) {
+                selectedTerms[i] = terms[selected[i]];
+            }
+            terms = selectedTerms;
+        }
+
+        BooleanQuery.Builder builder = new BooleanQuery.Builder().setDisableCoord(true);
+        if (minCollisions > 1) {
+            builder.setMinimumNumberShouldMatch(minCollisions);
+        }
+        DescriptorScoreCache descriptorScoreCache = new DescriptorScoreCache();
+
+        for (Term term : terms) {
+            builder.add(new BooleanClause(new DescriptorHashQuery(term, descriptor, encoding, getBoost(), fieldName, descriptorScoreCache), BooleanClause.Occur.SHOULD));
+        }
+
+        return builder.build();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof DescriptorHashTermsQuery))
+            return false;
+        DescriptorHashTermsQuery other = (DescriptorHashTermsQuery) o;
+        return (this.getBoost() == other.getBoost())
+                && fieldName.equals(other.fieldName)
+                && Arrays.equals(hashTerms, other.hashTerms)
+                && Arrays.equals(descriptor, other.descriptor)
+                && encoding.equals(other.encoding)
+                && pruning.equals(other.pruning)
+                && minCollisions == other.minCollisions;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + fieldName.hashCode();
+        result = 31 * result + Arrays.hashCode(hashTerms);
+        result = 31 * result + Arrays.hashCode(descriptor);
+        result = 31 * result + encoding.hashCode();
+        result = 31 * result + pruning.hashCode();
+        result = 31 * result + minCollisions;
+        return result;
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        if (!fieldName.equals(field)) {
+            buffer.append(fieldName);
+            buffer.append(":");
+        }
+        buffer.append(hashTerms.length);
+        buffer.append(" hashes");
+        if (pruning.isEnabled()) {
+            buffer.append(",");
+            buffer.append(pruning);
+        }
+        if (minCollisions > 1) {
+            buffer.append(",min_collisions=");
+            buffer.append(minCollisions);
+        }
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,162 @@
+package org.elasticsearch.index.query.descriptor;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.index.mapper.descriptor.DescriptorEncoding;
+import org.elasticsearch.index.query.image.ImageQueryParser;
+import org.elasticsearch.index.query.image.ScoreDocQueue;
+import org.elasticsearch.index.query.image.SearchTimeout;
+import org.elasticsearch.index.query.image.SegmentCache;
+import org.elasticsearch.index.query.image.TopHitsWeight;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Approximate search without hash, rank descriptors of the closest {@link IvfPqIndex} lists by their product quantized
+ * distance and score the best <code>REFINE_FACTOR * limit</code> of each segment on the full descriptor.
+ * The index of a segment is trained in the background on first use and dropped when the segment is closed,
+ * until it is trained every descriptor of the segment is scored
+ */
+public class DescriptorIvfQuery extends Query {
+    static final SegmentCache<IvfPqIndex> INDEXES = new SegmentCache<IvfPqIndex>() {
+        @Override
+        protected void onClose(IvfPqIndex index) {
+            index.release();
+        }
+    };
+    static final int REFINE_FACTOR = 4;
+    static final int TIMEOUT_CHECK_INTERVAL = 1 << 10;
+
+    private final String fieldName;
+    private final double[] descriptor;
+    private final DescriptorEncoding encoding;
+    private final int nprobe;
+    private final int limit;
+    private final CircuitBreaker breaker;
+    private final ThreadPool threadPool;
+
+    /**
+     * @param limit hits of the shard, negative for <code>from</code> + <code>size</code> of the search
+     */
+    public DescriptorIvfQuery(String fieldName, double[] descriptor, DescriptorEncoding encoding, int nprobe, int limit,
+                              CircuitBreaker breaker, ThreadPool threadPool, float boost) {
+        this.fieldName = fieldName;
+        this.descriptor = descriptor;
+        this.encoding = encoding;
+        this.nprobe = nprobe;
+        this.limit = limit;
+        this.breaker = breaker;
+        this.threadPool = threadPool;
+        setBoost(boost);
+    }
+
+    @Override
+    public Weight createWeight(final IndexSearcher searcher, boolean needsScores) throws IOException {
+        final int limit = ImageQueryParser.limit(this.limit);
+        return new TopHitsWeight(this) {
+            @Override
+            protected ScoreDoc[] topHits() throws IOException {
+                SearchTimeout timeout = SearchTimeout.current();
+                ScoreDocQueue queue = new ScoreDocQueue(limit);
+                for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
+                    LeafReader reader = context.reader();
+                    IvfPqIndex index = INDEXES.getAsync(reader, fieldName, new SegmentCache.Loader<IvfPqIndex>() {
+                        @Override
+                        public IvfPqIndex load(LeafReader reader) throws IOException {
+                            return IvfPqIndex.build(reader, fieldName, encoding, breaker, "ivf index [" + fieldName + "]");
+                        }
+                    }, threadPool.executor(ThreadPool.Names.WARMER));
+                    if (index == null) {    // still training, or failed to train
+                        if (!scan(context, queue, timeout)) {
+                            break;
+                        }
+                        continue;
+                    }
+                    if (index.size() == 0) {
+                        continue;
+                    }
+
+                    DescriptorDocScorer scorer = new DescriptorDocScorer(descriptor, encoding, reader, getBoost(), fieldName);
+                    for (int doc : index.search(descriptor, nprobe, REFINE_FACTOR * limit, reader.getLiveDocs())) {
+                        queue.collect(context.docBase + doc, scorer.score(doc));
+                    }
+                    if (timeout.exceeded()) {
+                        break;
+                    }
+                }
+                return queue.topHits();
+            }
+        };
+    }
+
+    /**
+     * Score every live doc of the segment having the descriptor into the queue, false if the search timed out
+     */
+    private boolean scan(LeafReaderContext context, ScoreDocQueue queue, SearchTimeout timeout) throws IOException {
+        LeafReader reader = context.reader();
+        Bits docsWithField = reader.getDocsWithField(fieldName);
+        if (docsWithField == null) {
+            return true;
+        }
+        Bits liveDocs = reader.getLiveDocs();
+
+        DescriptorDocScorer scorer = new DescriptorDocScorer(descriptor, encoding, reader, getBoost(), fieldName);
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+            if (doc % TIMEOUT_CHECK_INTERVAL == 0 && timeout.exceeded()) {
+                return false;
+            }
+            if (!docsWithField.get(doc) || (liveDocs != null && !liveDocs.get(doc))) {
+                continue;
+            }
+            queue.collect(context.docBase + doc, scorer.score(doc));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof DescriptorIvfQuery))
+            return false;
+        DescriptorIvfQuery other = (DescriptorIvfQuery) o;
+        return (this.getBoost() == other.getBoost())
+                && fieldName.equals(other.fieldName)
+                && Arrays.equals(descriptor, other.descriptor)
+                && encoding.equals(other.encoding)
+                && nprobe == other.nprobe
+                && limit == other.limit;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + fieldName.hashCode();
+        result = 31 * result + Arrays.hashCode(descriptor);
+        result = 31 * result + encoding.hashCode();
+        result = 31 * result + nprobe;
+        result = 31 * result + limit;
+        return result;
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("ivf(");
+        buffer.append(fieldName);
+        buffer.append(",nprobe=");
+        buffer.append(nprobe);
+        buffer.append(",limit=");
+        buffer.append(limit);
+        buffer.append(")");
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+}
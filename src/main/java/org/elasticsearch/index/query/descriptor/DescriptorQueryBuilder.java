@@ -17,6 +17,20 @@ public class DescriptorQueryBuilder extends QueryBuilder implements BoostableQue
 
     private double[] descriptor;
 
+    private String mode;
+
+    private int nprobe = -1;
+
+    private int limit = -1;
+
+    private int minCollisions = -1;
+
+    private int probes = -1;
+
+    private int maxTerms = -1;
+
+    private float maxDocFreq = -1;
+
     private String lookupIndex;
 
     private String lookupType;
@@ -47,6 +61,41 @@ public class DescriptorQueryBuilder extends QueryBuilder implements BoostableQue
         return this;
     }
 
+    public DescriptorQueryBuilder mode(String mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public DescriptorQueryBuilder nprobe(int nprobe) {
+        this.nprobe = nprobe;
+        return this;
+    }
+
+    public DescriptorQueryBuilder limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public DescriptorQueryBuilder minCollisions(int minCollisions) {
+        this.minCollisions = minCollisions;
+        return this;
+    }
+
+    public DescriptorQueryBuilder probes(int probes) {
+        this.probes = probes;
+        return this;
+    }
+
+    public DescriptorQueryBuilder maxTerms(int maxTerms) {
+        this.maxTerms = maxTerms;
+        return this;
+    }
+
+    public DescriptorQueryBuilder maxDocFreq(float maxDocFreq) {
+        this.maxDocFreq = maxDocFreq;
+        return this;
+    }
+
     public DescriptorQueryBuilder lookupIndex(String lookupIndex) {
         this.lookupIndex = lookupIndex;
         return this;
@@ -78,13 +127,43 @@ public class DescriptorQueryBuilder extends QueryBuilder implements BoostableQue
         builder.startObject(DescriptorQueryParser.NAME); // todo ?
 
         builder.startObject(fieldName);
-        builder.field("hash", hash);
+        if (hash != null) {
+            builder.field("hash", hash);
+        }
         builder.field("descriptor", descriptor);
 
+        if (mode != null) {
+            builder.field("mode", mode);
+        }
+
+        if (nprobe != -1) {
+            builder.field("nprobe", nprobe);
+        }
+
+        if (limit != -1) {
+            builder.field("limit", limit);
+        }
+
         if (boost != -1) {
             builder.field("boost", boost);
         }
 
+        if (minCollisions != -1) {
+            builder.field("min_collisions", minCollisions);
+        }
+
+        if (probes != -1) {
+            builder.field("probes", probes);
+        }
+
+        if (maxTerms != -1) {
+            builder.field("max_terms", maxTerms);
+        }
+
+        if (maxDocFreq != -1) {
+            builder.field("max_doc_freq", maxDocFreq);
+        }
+
         if (lookupIndex != null) {
             builder.field("index", lookupIndex);
         }
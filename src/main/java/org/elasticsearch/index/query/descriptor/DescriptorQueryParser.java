@@ -2,19 +2,24 @@ package org.elasticsearch.index.query.descriptor;
 
 import net.semanticmetadata.lire.indexers.hashing.BitSampling;
 import net.semanticmetadata.lire.indexers.hashing.LocalitySensitiveHashing;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.descriptor.DescriptorEncoding;
 import org.elasticsearch.index.mapper.descriptor.DescriptorMapper;
 import org.elasticsearch.index.mapper.image.HashEnum;
+import org.elasticsearch.index.mapper.image.LshMultiProbe;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.query.QueryParser;
 import org.elasticsearch.index.query.QueryParsingException;
+import org.elasticsearch.index.query.image.HashTermPruning;
+import org.elasticsearch.index.query.image.ImageHashCollisionQuery;
+import org.elasticsearch.index.query.image.ImageQueryParser;
+import org.elasticsearch.index.query.image.ModeEnum;
+import org.elasticsearch.plugin.image.ImageBreaker;
+import org.elasticsearch.threadpool.ThreadPool;
 
 import javax.management.Descriptor;
 import java.io.IOException;
@@ -25,11 +30,19 @@ public class DescriptorQueryParser implements QueryParser {
 
     public static final String NAME = "descriptor";
 
+    public static final int DEFAULT_NPROBE = 8;
+
     private Client client;
 
+    private ImageBreaker imageBreaker;
+
+    private ThreadPool threadPool;
+
     @Inject
-    public DescriptorQueryParser(Client client) {
+    public DescriptorQueryParser(Client client, ImageBreaker imageBreaker, ThreadPool threadPool) {
         this.client = client;
+        this.imageBreaker = imageBreaker;
+        this.threadPool = threadPool;
     }
 
     @Override
@@ -50,8 +63,15 @@ public class DescriptorQueryParser implements QueryParser {
         String fieldName = parser.currentName();
 
         HashEnum hash = null;
+        ModeEnum mode = ModeEnum.HASH;
         double[] descriptor = null;
         float boost = 1.0f;
+        int minCollisions = 1;
+        int probes = 0;
+        int maxTerms = -1;
+        float maxDocFreq = -1;
+        int nprobe = DEFAULT_NPROBE;
+        int limit = -1;
 
         token = parser.nextToken();
         if (token == XContentParser.Token.START_OBJECT) {
@@ -75,8 +95,34 @@ public class DescriptorQueryParser implements QueryParser {
                         }
                     } else if ("hash".equals(currentFieldName)) {
                         hash = HashEnum.getByName(parser.text());
+                    } else if ("mode".equals(currentFieldName)) {
+                        mode = ModeEnum.getByName(parser.text());
+                    } else if ("nprobe".equals(currentFieldName)) {
+                        nprobe = parser.intValue();
+                    } else if ("limit".equals(currentFieldName)) {
+                        limit = parser.intValue();
+                        if (limit < 1 || limit > ImageQueryParser.MAX_LIMIT) {
+                            throw new QueryParsingException(parseContext, "[descriptor] query [limit] must be between [1] and [" + ImageQueryParser.MAX_LIMIT + "], got [" + limit + "]");
+                        }
                     } else if ("boost".equals(currentFieldName)) {
                         boost = parser.floatValue();
+                    } else if ("min_collisions".equals(currentFieldName)) {
+                        minCollisions = parser.intValue();
+                        if (minCollisions < 1) {
+                            throw new QueryParsingException(parseContext, "[descriptor] query [min_collisions] must be positive, got [" + minCollisions + "]");
+                        }
+                    } else if ("probes".equals(currentFieldName)) {
+                        probes = parser.intValue();
+                        if (probes < 0) {
+                            throw new QueryParsingException(parseContext, "[descriptor] query [probes] must not be negative, got [" + probes + "]");
+                        }
+                    } else if ("max_terms".equals(currentFieldName)) {
+                        maxTerms = parser.intValue();
+                        if (maxTerms < 0) {
+                            throw new QueryParsingException(parseContext, "[descriptor] query [max_terms] must not be negative, got [" + maxTerms + "]");
+                        }
+                    } else if ("max_doc_freq".equals(currentFieldName)) {
+                        maxDocFreq = parser.floatValue();
                     } else {
                         throw new QueryParsingException(parseContext, "[descriptor] query does not support [" + currentFieldName + "]");
                     }
@@ -85,26 +131,47 @@ public class DescriptorQueryParser implements QueryParser {
             parser.nextToken();
         }
 
+        if (descriptor == null)
+            throw new QueryParsingException(parseContext, "No descriptor found");
+
+        DescriptorEncoding encoding = DescriptorEncoding.DOUBLE;
+        boolean multiProbe = false;
+        MappedFieldType fieldType = parseContext.fieldMapper(fieldName);
+        if (fieldType instanceof DescriptorMapper.DescriptorFieldType) {
+            encoding = ((DescriptorMapper.DescriptorFieldType) fieldType).encoding();
+            multiProbe = ((DescriptorMapper.DescriptorFieldType) fieldType).multiProbe();
+        }
+
+        if (mode == ModeEnum.IVF) {
+            if (nprobe < 1) {
+                throw new QueryParsingException(parseContext, "[descriptor] query [nprobe] must be positive, got [" + nprobe + "]");
+            }
+            return new DescriptorIvfQuery(fieldName, descriptor, encoding, nprobe, limit, imageBreaker.breaker(), threadPool, boost);
+        } else if (mode != ModeEnum.HASH) {
+            throw new QueryParsingException(parseContext, "[descriptor] query does not support mode [" + mode.name().toLowerCase() + "]");
+        }
+
         if (hash == null)
             throw new QueryParsingException(parseContext, "No hash found");
 
-        int[] value;
+        multiProbe &= hash == HashEnum.LSH;
+        if (probes > 0 && !multiProbe) {
+            throw new QueryParsingException(parseContext, "[descriptor] query [probes] needs the LSH hash on a field mapped with ["
+                    + DescriptorMapper.MULTI_PROBE + "]");
+        }
+
+        String[] hashTerms;
 
         if (hash.equals(HashEnum.BIT_SAMPLING)) {
-            value = BitSampling.generateHashes(descriptor);
+            hashTerms = ImageHashCollisionQuery.hashTerms(BitSampling.generateHashes(descriptor));
+        } else if (multiProbe) {
+            hashTerms = LshMultiProbe.probeTerms(descriptor, probes);
         } else if (hash.equals(HashEnum.LSH)) {
-            value = LocalitySensitiveHashing.generateHashes(descriptor);
+            hashTerms = ImageHashCollisionQuery.hashTerms(LocalitySensitiveHashing.generateHashes(descriptor));
         } else {
             throw new IllegalArgumentException();
         }
 
-        BooleanQuery.Builder builder = new BooleanQuery.Builder().setDisableCoord(true);
-        DescriptorScoreCache descriptorScoreCache = new DescriptorScoreCache();
-
-        for (int v : value) {
-            builder.add(new BooleanClause(new DescriptorHashQuery(new Term(fieldName + '.' + DescriptorMapper.HASH, Integer.toString(v)), descriptor, boost, fieldName, descriptorScoreCache), BooleanClause.Occur.SHOULD));
-        }
-
-        return builder.build();
+        return new DescriptorHashTermsQuery(fieldName, hashTerms, descriptor, encoding, new HashTermPruning(maxTerms, maxDocFreq), minCollisions, boost);
     }
 }
@@ -1,23 +1,27 @@
 package org.elasticsearch.index.query.descriptor;
 
 import com.google.common.collect.MapMaker;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.FixedBitSet;
 
-import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 /**
- * Cache document score for {@link org.elasticsearch.index.query.image.ImageHashQuery}
+ * Track documents already scored by one of the {@link org.elasticsearch.index.query.descriptor.DescriptorHashQuery}
+ * clauses, one bitset sized to maxDoc is created lazily for each segment
  */
 public class DescriptorScoreCache {
-    private Map<String, Float> scoreCache = new MapMaker().makeMap();
+    private final ConcurrentMap<LeafReaderContext, FixedBitSet> scored = new MapMaker().weakKeys().makeMap();
 
-    public Float getScore(String key) {
-        if (!scoreCache.containsKey(key)) {
-            return null;
+    public FixedBitSet getScored(LeafReaderContext context) {
+        FixedBitSet bits = scored.get(context);
+        if (bits == null) {
+            bits = new FixedBitSet(context.reader().maxDoc());
+            FixedBitSet existing = scored.putIfAbsent(context, bits);
+            if (existing != null) {
+                bits = existing;
+            }
         }
-        return scoreCache.get(key);
-    }
-
-    public void setScore(String key, Float score) {
-        scoreCache.put(key, score);
+        return bits;
     }
 }
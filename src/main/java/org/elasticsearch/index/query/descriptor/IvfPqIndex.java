@@ -0,0 +1,353 @@
+package org.elasticsearch.index.query.descriptor;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.index.mapper.descriptor.DescriptorEncoding;
+import org.elasticsearch.index.query.image.NeighbourQueue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Inverted file index with product quantization over the descriptors of one segment.
+ * Each descriptor is assigned to the closest coarse centroid, its residual to that centroid is split in sub vectors
+ * and each sub vector is encoded as the one byte id of the closest centroid of its sub space codebook.
+ * Centroids and codebooks are trained with k-means on a sample of the segment
+ */
+public class IvfPqIndex {
+    static final int TRAIN_SAMPLE = 4096;
+    static final int TRAIN_ITERATIONS = 10;
+    static final int MAX_LISTS = 1024;
+    static final int SUB_DIMENSION = 16;
+    static final int MAX_SUB_CENTROIDS = 256;
+    static final long SEED = 0x5eed;
+
+    private final int dims;
+    private final float[][] coarse;         // list -> centroid
+    private final int[] subStarts;          // sub space -> first dimension, last entry is dims
+    private final float[][][] codebooks;    // sub space -> centroid -> sub vector
+    private final int[][] listDocs;         // list -> docs
+    private final byte[][] listCodes;       // list -> codes of its docs, one byte per sub space
+    private final int size;
+    private CircuitBreaker breaker;
+
+    private IvfPqIndex(int dims, float[][] coarse, int[] subStarts, float[][][] codebooks, int[][] listDocs, byte[][] listCodes, int size) {
+        this.dims = dims;
+        this.coarse = coarse;
+        this.subStarts = subStarts;
+        this.codebooks = codebooks;
+        this.listDocs = listDocs;
+        this.listCodes = listCodes;
+        this.size = size;
+    }
+
+    /**
+     * Train and encode all live docs of the segment having the descriptor. The training of an index for every doc of the
+     * segment is charged to the breaker before it starts, and replaced by the size of the index once trained
+     */
+    public static IvfPqIndex build(LeafReader reader, String fieldName, DescriptorEncoding encoding, CircuitBreaker breaker,
+                                   String label) throws IOException {
+        Bits docsWithField = reader.getDocsWithField(fieldName);
+        BinaryDocValues values = reader.getBinaryDocValues(fieldName);
+        Bits liveDocs = reader.getLiveDocs();
+
+        int dims = 0;
+        if (docsWithField != null && values != null) {
+            for (int doc = 0; doc < reader.maxDoc() && dims == 0; doc++) {
+                if (docsWithField.get(doc) && (liveDocs == null || liveDocs.get(doc))) {
+                    dims = encoding.dimensions(values.get(doc));
+                }
+            }
+        }
+        if (dims == 0) {
+            return new IvfPqIndex(0, new float[0][], new int[] {0}, new float[0][][], new int[0][], new byte[0][], 0);
+        }
+
+        long estimate = estimateBytes(reader.maxDoc(), dims);
+        breaker.addEstimateBytesAndMaybeBreak(estimate, label);
+        IvfPqIndex index;
+        try {
+            index = train(reader.maxDoc(), docsWithField, liveDocs, values, dims, encoding);
+        } catch (Throwable t) {
+            breaker.addWithoutBreaking(-estimate);
+            throw t;
+        }
+        breaker.addWithoutBreaking(index.ramBytesUsed() - estimate);
+        index.breaker = breaker;
+        return index;
+    }
+
+    /**
+     * Peak heap of training an index of <code>docs</code> descriptors, the index itself with the sample, the doc ids
+     * and the codes used while training
+     */
+    static long estimateBytes(int docs, int dims) {
+        int sampleSize = Math.min(docs, TRAIN_SAMPLE);
+        int lists = Math.max(1, Math.min(Math.min((int) Math.sqrt(docs), MAX_LISTS), sampleSize));
+        int subSpaces = (dims + SUB_DIMENSION - 1) / SUB_DIMENSION;
+        long codebooks = (long) subSpaces * Math.min(MAX_SUB_CENTROIDS, sampleSize) * (4L * SUB_DIMENSION + 16);
+        return 4L * sampleSize * dims + 4L * lists * dims + codebooks + 32L * lists + (long) docs * (4 * 4 + 2 * subSpaces);
+    }
+
+    private static IvfPqIndex train(int maxDoc, Bits docsWithField, Bits liveDocs, BinaryDocValues values, int dims,
+                                    DescriptorEncoding encoding) {
+        int size = 0;
+        int[] docs = new int[0];
+        for (int doc = 0; doc < maxDoc; doc++) {
+            if (!docsWithField.get(doc) || (liveDocs != null && !liveDocs.get(doc))) {
+                continue;
+            }
+            docs = ArrayUtil.grow(docs, size + 1);
+            docs[size++] = doc;
+        }
+
+        Random random = new Random(SEED);
+
+        // train on a random sample of the segment
+        int[] positions = new int[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = i;
+        }
+        int sampleSize = Math.min(size, TRAIN_SAMPLE);
+        float[][] sample = new float[sampleSize][dims];
+        for (int i = 0; i < sampleSize; i++) {
+            int j = i + random.nextInt(size - i);
+            int position = positions[j];
+            positions[j] = positions[i];
+            positions[i] = position;
+            encoding.decode(values.get(docs[position]), sample[i]);
+        }
+
+        int lists = Math.max(1, Math.min(Math.min((int) Math.sqrt(size), MAX_LISTS), sampleSize));
+        float[][] coarse = kMeans(sample, 0, dims, lists, random);
+        for (float[] vector : sample) {   // codebooks are trained on residuals
+            subtract(vector, coarse[closest(coarse, vector, 0, dims)]);
+        }
+
+        int subSpaces = (dims + SUB_DIMENSION - 1) / SUB_DIMENSION;
+        int[] subStarts = new int[subSpaces + 1];
+        for (int j = 0; j < subSpaces; j++) {
+            subStarts[j] = j * SUB_DIMENSION;
+        }
+        subStarts[subSpaces] = dims;
+        int subCentroids = Math.min(MAX_SUB_CENTROIDS, sampleSize);
+        float[][][] codebooks = new float[subSpaces][][];
+        for (int j = 0; j < subSpaces; j++) {
+            codebooks[j] = kMeans(sample, subStarts[j], subStarts[j + 1], subCentroids, random);
+        }
+
+        // encode every doc
+        int[] assignments = new int[size];
+        byte[] codes = new byte[size * subSpaces];
+        int[] listSizes = new int[lists];
+        float[] vector = new float[dims];
+        for (int i = 0; i < size; i++) {
+            encoding.decode(values.get(docs[i]), vector);
+            int list = closest(coarse, vector, 0, dims);
+            subtract(vector, coarse[list]);
+            for (int j = 0; j < subSpaces; j++) {
+                codes[i * subSpaces + j] = (byte) closest(codebooks[j], vector, subStarts[j], subStarts[j + 1]);
+            }
+            assignments[i] = list;
+            listSizes[list]++;
+        }
+
+        int[][] listDocs = new int[lists][];
+        byte[][] listCodes = new byte[lists][];
+        for (int list = 0; list < lists; list++) {
+            listDocs[list] = new int[listSizes[list]];
+            listCodes[list] = new byte[listSizes[list] * subSpaces];
+            listSizes[list] = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            int list = assignments[i];
+            int position = listSizes[list]++;
+            listDocs[list][position] = docs[i];
+            System.arraycopy(codes, i * subSpaces, listCodes[list], position * subSpaces, subSpaces);
+        }
+
+        return new IvfPqIndex(dims, coarse, subStarts, codebooks, listDocs, listCodes, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find closest live docs to query in the <code>nprobe</code> closest lists, closest first.
+     * Distances are asymmetric, the query is not quantized and is compared with the codes through per list lookup tables
+     */
+    public int[] search(double[] query, int nprobe, int k, Bits liveDocs) {
+        if (size == 0 || k <= 0) {
+            return new int[0];
+        }
+        if (query.length != dims) {
+            throw new IllegalArgumentException("Query descriptor length [" + query.length + "] does not match indexed length [" + dims + "]");
+        }
+
+        NeighbourQueue lists = new NeighbourQueue(true);
+        for (int list = 0; list < coarse.length; list++) {
+            lists.add(list, distance(query, coarse[list], 0, dims));
+            if (lists.size() > nprobe) {
+                lists.pop();
+            }
+        }
+
+        int subSpaces = codebooks.length;
+        double[] residual = new double[dims];
+        double[] table = new double[subSpaces * MAX_SUB_CENTROIDS];
+        NeighbourQueue results = new NeighbourQueue(true);
+        while (lists.size() > 0) {
+            int list = lists.pop();
+            int[] docs = listDocs[list];
+            if (docs.length == 0) {
+                continue;
+            }
+
+            float[] centroid = coarse[list];
+            for (int i = 0; i < dims; i++) {
+                residual[i] = query[i] - centroid[i];
+            }
+            for (int j = 0; j < subSpaces; j++) {
+                float[][] codebook = codebooks[j];
+                for (int c = 0; c < codebook.length; c++) {
+                    table[j * MAX_SUB_CENTROIDS + c] = distance(residual, codebook[c], subStarts[j], subStarts[j + 1]);
+                }
+            }
+
+            byte[] codes = listCodes[list];
+            for (int i = 0, offset = 0; i < docs.length; i++, offset += subSpaces) {
+                if (liveDocs != null && !liveDocs.get(docs[i])) {
+                    continue;
+                }
+                double distance = 0;
+                for (int j = 0; j < subSpaces; j++) {
+                    distance += table[j * MAX_SUB_CENTROIDS + (codes[offset + j] & 0xff)];
+                }
+                if (results.size() < k || distance < results.topDistance()) {
+                    results.add(docs[i], distance);
+                    if (results.size() > k) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+
+        int[] hits = new int[results.size()];
+        for (int i = hits.length - 1; i >= 0; i--) {
+            hits[i] = results.pop();
+        }
+        return hits;
+    }
+
+    /**
+     * Lloyd's k-means over dimensions [from, to) of the points, centroids hold only those dimensions
+     */
+    private static float[][] kMeans(float[][] points, int from, int to, int k, Random random) {
+        int dims = to - from;
+        float[][] centroids = new float[k][dims];
+        int[] order = new int[points.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        for (int c = 0; c < k; c++) {   // start from distinct random points
+            int j = c + random.nextInt(order.length - c);
+            int point = order[j];
+            order[j] = order[c];
+            order[c] = point;
+            System.arraycopy(points[point], from, centroids[c], 0, dims);
+        }
+
+        int[] counts = new int[k];
+        double[][] sums = new double[k][dims];
+        for (int iteration = 0; iteration < TRAIN_ITERATIONS; iteration++) {
+            for (int c = 0; c < k; c++) {
+                counts[c] = 0;
+                Arrays.fill(sums[c], 0);
+            }
+            for (float[] point : points) {
+                int c = closest(centroids, point, from, to);
+                counts[c]++;
+                for (int i = 0; i < dims; i++) {
+                    sums[c][i] += point[from + i];
+                }
+            }
+            for (int c = 0; c < k; c++) {
+                if (counts[c] == 0) {   // empty cluster, restart from a random point
+                    System.arraycopy(points[random.nextInt(points.length)], from, centroids[c], 0, dims);
+                    continue;
+                }
+                for (int i = 0; i < dims; i++) {
+                    centroids[c][i] = (float) (sums[c][i] / counts[c]);
+                }
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * Closest centroid to dimensions [from, to) of the vector
+     */
+    private static int closest(float[][] centroids, float[] vector, int from, int to) {
+        int closest = 0;
+        double closestDistance = Double.MAX_VALUE;
+        for (int c = 0; c < centroids.length; c++) {
+            float[] centroid = centroids[c];
+            double distance = 0;
+            for (int i = from; i < to; i++) {
+                double diff = vector[i] - centroid[i - from];
+                distance += diff * diff;
+            }
+            if (distance < closestDistance) {
+                closestDistance = distance;
+                closest = c;
+            }
+        }
+        return closest;
+    }
+
+    private static double distance(double[] vector, float[] centroid, int from, int to) {
+        double distance = 0;
+        for (int i = from; i < to; i++) {
+            double diff = vector[i] - centroid[i - from];
+            distance += diff * diff;
+        }
+        return distance;
+    }
+
+    private static void subtract(float[] vector, float[] centroid) {
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] -= centroid[i];
+        }
+    }
+
+    /**
+     * Approximate heap used by the index
+     */
+    public long ramBytesUsed() {
+        long bytes = 4L * (subStarts.length + (long) coarse.length * dims);
+        for (float[][] codebook : codebooks) {
+            for (float[] centroid : codebook) {
+                bytes += 4L * centroid.length + 16;
+            }
+        }
+        for (int list = 0; list < listDocs.length; list++) {
+            bytes += 4L * listDocs[list].length + listCodes[list].length + 32;
+        }
+        return bytes;
+    }
+
+    /**
+     * Give back the bytes charged by {@link #build}, once the segment of the index is closed
+     */
+    void release() {
+        if (breaker != null) {
+            breaker.addWithoutBreaking(-ramBytesUsed());
+            breaker = null;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.elasticsearch.index.query.image;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * All values of a binary doc values field of one segment in one contiguous off heap buffer.
+ * Fixed length values are addressed by doc * width, others through an off heap offsets table
+ */
+public final class FeatureMatrix {
+    private static final BytesRef EMPTY = new BytesRef();
+
+    private final ByteBuffer data;
+    private final IntBuffer offsets;   // null when fixed width
+    private final int width;
+    private final Bits docsWithField;
+    private final CircuitBreaker breaker;
+    private final long bytes;
+
+    private FeatureMatrix(ByteBuffer data, IntBuffer offsets, int width, Bits docsWithField, CircuitBreaker breaker, long bytes) {
+        this.data = data;
+        this.offsets = offsets;
+        this.width = width;
+        this.docsWithField = docsWithField;
+        this.breaker = breaker;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Copy the field off heap, charging its size to the breaker first. Null if the segment has no values
+     * or if they do not fit in one buffer
+     */
+    static FeatureMatrix load(LeafReader reader, String fieldName, CircuitBreaker breaker) throws IOException {
+        BinaryDocValues values = reader.getBinaryDocValues(fieldName);
+        Bits docsWithField = reader.getDocsWithField(fieldName);
+        if (values == null || docsWithField == null) {
+            return null;
+        }
+
+        int maxDoc = reader.maxDoc();
+        long total = 0;
+        int width = -1;
+        for (int doc = 0; doc < maxDoc; doc++) {
+            if (!docsWithField.get(doc)) {
+                continue;
+            }
+            int length = values.get(doc).length;
+            if (width == -1) {
+                width = length;
+            } else if (width != length) {
+                width = -2;   // variable width
+            }
+            total += length;
+        }
+        if (width == -1) {
+            return null;
+        }
+
+        boolean fixed = width >= 0;
+        long dataBytes = fixed ? (long) width * maxDoc : total;
+        if (dataBytes > Integer.MAX_VALUE) {
+            return null;
+        }
+        // copied, the bits of the reader are only to be read by the thread which got them
+        long bytes = dataBytes + (fixed ? 0 : 4L * (maxDoc + 1)) + 8L * FixedBitSet.bits2words(maxDoc);
+        breaker.addEstimateBytesAndMaybeBreak(bytes, "image feature matrix [" + fieldName + "]");
+
+        try {
+            ByteBuffer data = ByteBuffer.allocateDirect((int) dataBytes);
+            IntBuffer offsets = fixed ? null : ByteBuffer.allocateDirect(4 * (maxDoc + 1)).asIntBuffer();
+            FixedBitSet docs = new FixedBitSet(maxDoc);
+            for (int doc = 0; doc < maxDoc; doc++) {
+                if (offsets != null) {
+                    offsets.put(doc, data.position());
+                }
+                if (!docsWithField.get(doc)) {
+                    continue;
+                }
+                docs.set(doc);
+                BytesRef bytesRef = values.get(doc);
+                if (fixed) {
+                    data.position(doc * width);
+                }
+                data.put(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+            }
+            if (offsets != null) {
+                offsets.put(maxDoc, data.position());
+            }
+            data.clear();
+            return new FeatureMatrix(data.asReadOnlyBuffer(), offsets, width, docs, breaker, bytes);
+        } catch (Throwable t) {
+            breaker.addWithoutBreaking(-bytes);
+            throw t;
+        }
+    }
+
+    public long ramBytesUsed() {
+        return bytes;
+    }
+
+    /**
+     * Give back the bytes charged to the breaker, the buffers are freed once unreachable
+     */
+    void release() {
+        breaker.addWithoutBreaking(-bytes);
+    }
+
+    /**
+     * Doc values reading from the matrix, not thread safe, like Lucene's
+     */
+    BinaryDocValues newView() {
+        final ByteBuffer buffer = data.duplicate();
+        final BytesRef bytesRef = new BytesRef(new byte[Math.max(width, 0)]);
+        return new BinaryDocValues() {
+            @Override
+            public BytesRef get(int docID) {
+                if (!docsWithField.get(docID)) {
+                    return EMPTY;
+                }
+                int start;
+                int length;
+                if (offsets == null) {
+                    start = docID * width;
+                    length = width;
+                } else {
+                    start = offsets.get(docID);
+                    length = offsets.get(docID + 1) - start;
+                    bytesRef.bytes = ArrayUtil.grow(bytesRef.bytes, length);
+                }
+                buffer.position(start);
+                buffer.get(bytesRef.bytes, 0, length);
+                bytesRef.length = length;
+                return bytesRef;
+            }
+        };
+    }
+}
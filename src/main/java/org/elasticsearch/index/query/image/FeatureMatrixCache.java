@@ -0,0 +1,137 @@
+package org.elasticsearch.index.query.image;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.mapper.descriptor.DescriptorMapper;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesWarmer;
+import org.elasticsearch.plugin.image.ImageBreaker;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Node level cache of {@link FeatureMatrix}es. Indices with <code>index.image.feature_cache</code> enabled have the image
+ * feature and descriptor fields of every new segment loaded off heap by an index warmer, scorers read from the matrix
+ * when it is loaded. Matrices are charged to the <code>image</code> circuit breaker and dropped when their segment is closed
+ */
+public class FeatureMatrixCache extends AbstractComponent {
+
+    public static final String ENABLED_SETTING = "index.image.feature_cache";
+
+    /** keyed by segment core, cores are unique to a node so nodes sharing a JVM do not see each others matrices */
+    private static final SegmentCache<FeatureMatrix> MATRICES = new SegmentCache<FeatureMatrix>() {
+        @Override
+        protected void onClose(FeatureMatrix matrix) {
+            matrix.release();
+        }
+    };
+
+    private final CircuitBreaker breaker;
+
+    @Inject
+    public FeatureMatrixCache(Settings settings, ImageBreaker imageBreaker, IndicesWarmer indicesWarmer) {
+        super(settings);
+        this.breaker = imageBreaker.breaker();
+        indicesWarmer.addListener(new FeatureMatrixWarmer());
+    }
+
+    /**
+     * Doc values of the field, read from the matrix if the segment was warmed
+     */
+    public static BinaryDocValues docValues(LeafReader reader, String fieldName) throws IOException {
+        FeatureMatrix matrix = MATRICES.peek(reader, fieldName);
+        if (matrix != null) {
+            return matrix.newView();
+        }
+        return reader.getBinaryDocValues(fieldName);
+    }
+
+    /**
+     * Load matrices of all image feature and descriptor fields of the segment
+     */
+    void warm(final LeafReader reader, MapperService mapperService) throws IOException {
+        for (final FieldInfo fieldInfo : reader.getFieldInfos()) {
+            if (fieldInfo.getDocValuesType() != DocValuesType.BINARY || !isFeatureField(mapperService, fieldInfo.name)) {
+                continue;
+            }
+            MATRICES.get(reader, fieldInfo.name, new SegmentCache.Loader<FeatureMatrix>() {
+                @Override
+                public FeatureMatrix load(LeafReader reader) throws IOException {
+                    return FeatureMatrix.load(reader, fieldInfo.name, breaker);
+                }
+            });
+        }
+    }
+
+    /**
+     * Descriptor fields, and <code>field.FEATURE</code> doc values of image fields
+     */
+    static boolean isFeatureField(MapperService mapperService, String name) {
+        MappedFieldType fieldType = mapperService.fullName(name);
+        if (fieldType != null) {
+            return DescriptorMapper.CONTENT_TYPE.equals(fieldType.typeName());
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0) {
+            return false;
+        }
+        MappedFieldType parentType = mapperService.fullName(name.substring(0, dot));
+        return parentType != null && ImageMapper.CONTENT_TYPE.equals(parentType.typeName());
+    }
+
+    final class FeatureMatrixWarmer extends IndicesWarmer.Listener {
+
+        @Override
+        public IndicesWarmer.TerminationHandle warmNewReaders(IndexShard indexShard, IndexMetaData indexMetaData,
+                                                              IndicesWarmer.WarmerContext context, ThreadPool threadPool) {
+            if (!indexMetaData.getSettings().getAsBoolean(ENABLED_SETTING, false)) {
+                return IndicesWarmer.TerminationHandle.NO_WAIT;
+            }
+
+            final MapperService mapperService = indexShard.mapperService();
+            List<LeafReaderContext> leaves = context.searcher().reader().leaves();
+            final CountDownLatch latch = new CountDownLatch(leaves.size());
+            for (final LeafReaderContext leaf : leaves) {
+                threadPool.executor(ThreadPool.Names.WARMER).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            warm(leaf.reader(), mapperService);
+                        } catch (Throwable t) {
+                            logger.warn("failed to warm image feature matrix of segment [{}]", t, leaf.reader());
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                });
+            }
+
+            return new IndicesWarmer.TerminationHandle() {
+                @Override
+                public void awaitTermination() throws InterruptedException {
+                    latch.await();
+                }
+            };
+        }
+
+        @Override
+        public IndicesWarmer.TerminationHandle warmTopReader(IndexShard indexShard, IndexMetaData indexMetaData,
+                                                             IndicesWarmer.WarmerContext context, ThreadPool threadPool) {
+            return IndicesWarmer.TerminationHandle.NO_WAIT;
+        }
+    }
+}
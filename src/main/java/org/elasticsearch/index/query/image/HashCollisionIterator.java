@@ -0,0 +1,107 @@
+package org.elasticsearch.index.query.image;
+
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.PriorityQueue;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Merge postings of all hash terms in a segment into one iterator, each doc is visited once
+ * and {@link #collisions()} returns the number of hash terms it shares with the query.
+ * Docs sharing less than <code>minCollisions</code> hash terms are skipped
+ */
+public final class HashCollisionIterator extends DocIdSetIterator {
+    private final PostingsQueue queue;
+    private final int minCollisions;
+    private final long cost;
+    private int doc = -1;
+    private int collisions;
+
+    public HashCollisionIterator(List<PostingsEnum> postings, int minCollisions) throws IOException {
+        this.queue = new PostingsQueue(postings.size());
+        this.minCollisions = Math.max(1, minCollisions);
+        long cost = 0;
+        for (PostingsEnum postingsEnum : postings) {
+            cost += postingsEnum.cost();
+            if (postingsEnum.nextDoc() != NO_MORE_DOCS) {
+                queue.add(postingsEnum);
+            }
+        }
+        this.cost = cost;
+    }
+
+    /**
+     * Number of hash terms matching current doc
+     */
+    public int collisions() {
+        return collisions;
+    }
+
+    @Override
+    public int docID() {
+        return doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+        while (queue.size() >= minCollisions) {   // otherwise no doc can collide enough anymore
+            collect(queue.top().docID());
+            if (collisions >= minCollisions) {
+                return doc;
+            }
+        }
+        collisions = 0;
+        return doc = NO_MORE_DOCS;
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+        PostingsEnum top = queue.top();
+        while (top != null && top.docID() < target) {
+            if (top.advance(target) == NO_MORE_DOCS) {
+                queue.pop();
+                top = queue.top();
+            } else {
+                top = queue.updateTop();
+            }
+        }
+        return nextDoc();
+    }
+
+    /**
+     * Count all postings positioned on target and move them to their next doc
+     */
+    private void collect(int target) throws IOException {
+        collisions = 0;
+        PostingsEnum top = queue.top();
+        while (top != null && top.docID() == target) {
+            collisions++;
+            if (top.nextDoc() == NO_MORE_DOCS) {
+                queue.pop();
+                top = queue.top();
+            } else {
+                top = queue.updateTop();
+            }
+        }
+        doc = target;
+    }
+
+    @Override
+    public long cost() {
+        return cost;
+    }
+
+    private static final class PostingsQueue extends PriorityQueue<PostingsEnum> {
+
+        PostingsQueue(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected boolean lessThan(PostingsEnum a, PostingsEnum b) {
+            return a.docID() < b.docID();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.elasticsearch.index.query.image;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keep only the most selective hash terms of a query, by document frequency
+ */
+public class HashTermPruning {
+
+    public static final HashTermPruning NONE = new HashTermPruning(-1, -1);
+
+    private final int maxTerms;
+
+    private final float maxDocFreq;
+
+    /**
+     * @param maxTerms   maximum number of terms to keep, negative for no limit
+     * @param maxDocFreq terms matching more docs are dropped, less than 1 is a fraction of maxDoc,
+     *                   otherwise an absolute number of docs, negative for no limit
+     */
+    public HashTermPruning(int maxTerms, float maxDocFreq) {
+        this.maxTerms = maxTerms;
+        this.maxDocFreq = maxDocFreq;
+    }
+
+    public boolean isEnabled() {
+        return maxTerms >= 0 || maxDocFreq >= 0;
+    }
+
+    /**
+     * @return sorted indexes of the terms to keep, terms missing from the index are never kept
+     */
+    public int[] select(final int[] docFreqs, int maxDoc) {
+        long limit = Long.MAX_VALUE;
+        if (maxDocFreq >= 0) {
+            limit = maxDocFreq < 1 ? (long) Math.ceil(maxDocFreq * maxDoc) : (long) maxDocFreq;
+        }
+
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < docFreqs.length; i++) {
+            if (docFreqs[i] > 0 && docFreqs[i] <= limit) {
+                candidates.add(i);
+            }
+        }
+
+        if (maxTerms >= 0 && candidates.size() > maxTerms) {
+            Collections.sort(candidates, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int result = Integer.compare(docFreqs[a], docFreqs[b]);
+                    return result != 0 ? result : Integer.compare(a, b);
+                }
+            });
+            candidates = candidates.subList(0, maxTerms);
+            Collections.sort(candidates);
+        }
+
+        int[] selected = new int[candidates.size()];
+        for (int i = 0; i < selected.length; i++) {
+            selected[i] = candidates.get(i);
+        }
+        return selected;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof HashTermPruning))
+            return false;
+        HashTermPruning other = (HashTermPruning) o;
+        return maxTerms == other.maxTerms && maxDocFreq == other.maxDocFreq;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * maxTerms + Float.floatToIntBits(maxDocFreq);
+    }
+
+    @Override
+    public String toString() {
+        return "max_terms=" + maxTerms + ",max_doc_freq=" + maxDocFreq;
+    }
+}
@@ -0,0 +1,317 @@
+package org.elasticsearch.index.query.image;
+
+import com.carrotsearch.hppc.IntHashSet;
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Hierarchical navigable small world graph over the features of one segment, used for approximate nearest neighbour search.
+ * The graph only holds links between docs, features are read from the doc values of the segment to calculate a distance
+ */
+public class HnswGraph {
+    static final int M = 16;
+    static final int MAX_LEVEL0_NEIGHBOURS = 2 * M;
+    static final int EF_CONSTRUCTION = 100;
+    static final long SEED = 0x5eed;
+
+    private final Class<? extends LireFeature> featureClass;
+    private final int size;
+    private final int[] docs;
+    private final int[][][] neighbours;  // node -> level -> neighbour nodes
+    private final int[][] neighbourCounts;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private CircuitBreaker breaker;
+
+    private HnswGraph(Class<? extends LireFeature> featureClass, int size, int[] docs) {
+        this.featureClass = featureClass;
+        this.size = size;
+        this.docs = docs;
+        this.neighbours = new int[size][][];
+        this.neighbourCounts = new int[size][];
+    }
+
+    /**
+     * Build graph for all live docs of the segment having the feature. An estimate for every doc of the segment is
+     * charged to the breaker before building, and replaced by the size of the graph once built
+     */
+    public static HnswGraph build(LeafReader reader, String luceneFieldName, Class<? extends LireFeature> featureClass,
+                                  CircuitBreaker breaker, String label) throws IOException {
+        long estimate = estimateBytes(reader.maxDoc());
+        breaker.addEstimateBytesAndMaybeBreak(estimate, label);
+        HnswGraph graph;
+        try {
+            Bits docsWithField = reader.getDocsWithField(luceneFieldName);
+            Bits liveDocs = reader.getLiveDocs();
+
+            int size = 0;
+            int[] docs = new int[0];
+            if (docsWithField != null) {
+                for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                    if (!docsWithField.get(doc) || (liveDocs != null && !liveDocs.get(doc))) {
+                        continue;
+                    }
+                    docs = ArrayUtil.grow(docs, size + 1);
+                    docs[size++] = doc;
+                }
+            }
+
+            graph = new HnswGraph(featureClass, size, docs);
+            if (size > 0) {
+                graph.insertAll(graph.new Features(FeatureMatrixCache.docValues(reader, luceneFieldName)));
+            }
+        } catch (Throwable t) {
+            breaker.addWithoutBreaking(-estimate);
+            throw t;
+        }
+        breaker.addWithoutBreaking(graph.ramBytesUsed() - estimate);
+        graph.breaker = breaker;
+        return graph;
+    }
+
+    /**
+     * Expected heap of a graph of <code>docs</code> nodes, the upper levels hold 1 / (M - 1) as many lists as level 0
+     */
+    static long estimateBytes(int docs) {
+        long level0 = 4L * (MAX_LEVEL0_NEIGHBOURS + 1) + 16;
+        long upperLevels = (4L * (M + 1) + 16) / (M - 1) + 1;
+        return docs * (4 + level0 + upperLevels + 4 + 32);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void insertAll(Features features) {
+        Random random = new Random(SEED);
+        double levelMultiplier = 1 / Math.log(M);
+        LireFeature current = newFeature();
+        LireFeature other = newFeature();
+        IntHashSet visited = new IntHashSet();
+        NeighbourQueue candidates = new NeighbourQueue(false);
+        NeighbourQueue results = new NeighbourQueue(true);
+
+        for (int node = 0; node < size; node++) {
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            neighbours[node] = new int[level + 1][];
+            neighbourCounts[node] = new int[level + 1];
+            for (int lc = 0; lc <= level; lc++) {
+                neighbours[node][lc] = new int[maxNeighbours(lc) + 1];   // one extra slot before shrinking
+            }
+
+            if (entryPoint == -1) {
+                entryPoint = node;
+                maxLevel = level;
+                continue;
+            }
+
+            features.load(node, current);
+            int ep = entryPoint;
+            for (int lc = maxLevel; lc > level; lc--) {
+                ep = greedySearch(current, ep, lc, features);
+            }
+            for (int lc = Math.min(level, maxLevel); lc >= 0; lc--) {
+                searchLayer(current, ep, EF_CONSTRUCTION, lc, null, features, visited, candidates, results);
+                while (results.size() > M) {
+                    results.pop();
+                }
+                int closest = -1;
+                while (results.size() > 0) {
+                    closest = results.pop();
+                    connect(node, closest, lc, other, features);
+                    connect(closest, node, lc, other, features);
+                }
+                ep = closest;
+            }
+
+            if (level > maxLevel) {
+                maxLevel = level;
+                entryPoint = node;
+            }
+        }
+    }
+
+    /**
+     * Find closest live docs to query, closest first. Deleted docs are still walked through but not counted,
+     * so up to <code>k</code> live docs are found however many docs were deleted since the graph was built
+     *
+     * @param values doc values of the field in the segment of the graph, not shared with other threads
+     */
+    public int[] search(LireFeature query, int k, int ef, BinaryDocValues values, Bits liveDocs) {
+        if (size == 0 || k <= 0) {
+            return new int[0];
+        }
+        Features features = new Features(values);
+        int ep = entryPoint;
+        for (int lc = maxLevel; lc > 0; lc--) {
+            ep = greedySearch(query, ep, lc, features);
+        }
+        NeighbourQueue results = new NeighbourQueue(true);
+        searchLayer(query, ep, Math.max(ef, k), 0, liveDocs, features, new IntHashSet(), new NeighbourQueue(false), results);
+
+        while (results.size() > k) {
+            results.pop();
+        }
+        int[] hits = new int[results.size()];
+        for (int i = hits.length - 1; i >= 0; i--) {
+            hits[i] = docs[results.pop()];
+        }
+        return hits;
+    }
+
+    private int greedySearch(LireFeature query, int ep, int level, Features features) {
+        double distance = features.distance(query, ep);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] list = neighbours[ep][level];
+            int count = neighbourCounts[ep][level];
+            for (int i = 0; i < count; i++) {
+                double d = features.distance(query, list[i]);
+                if (d < distance) {
+                    distance = d;
+                    ep = list[i];
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    /**
+     * Best first search of one level, <code>results</code> holds the ef closest accepted nodes found, farthest on top.
+     * Nodes of docs missing from <code>acceptDocs</code> are walked through but never kept, null accepts all nodes
+     */
+    private void searchLayer(LireFeature query, int ep, int ef, int level, Bits acceptDocs, Features features,
+                             IntHashSet visited, NeighbourQueue candidates, NeighbourQueue results) {
+        visited.clear();
+        candidates.clear();
+        results.clear();
+
+        double distance = features.distance(query, ep);
+        visited.add(ep);
+        candidates.add(ep, distance);
+        if (accepted(ep, acceptDocs)) {
+            results.add(ep, distance);
+        }
+
+        while (candidates.size() > 0) {
+            if (results.size() >= ef && candidates.topDistance() > results.topDistance()) {
+                break;
+            }
+            int candidate = candidates.pop();
+            int[] list = neighbours[candidate][level];
+            int count = neighbourCounts[candidate][level];
+            for (int i = 0; i < count; i++) {
+                int neighbour = list[i];
+                if (!visited.add(neighbour)) {
+                    continue;
+                }
+                double d = features.distance(query, neighbour);
+                if (results.size() < ef || d < results.topDistance()) {
+                    candidates.add(neighbour, d);
+                    if (accepted(neighbour, acceptDocs)) {
+                        results.add(neighbour, d);
+                        if (results.size() > ef) {
+                            results.pop();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean accepted(int node, Bits acceptDocs) {
+        return acceptDocs == null || acceptDocs.get(docs[node]);
+    }
+
+    /**
+     * Add link from node to neighbour, drop the farthest link if node has too many
+     */
+    private void connect(int node, int neighbour, int level, LireFeature nodeFeature, Features features) {
+        int[] list = neighbours[node][level];
+        int count = neighbourCounts[node][level];
+        list[count++] = neighbour;
+        if (count > maxNeighbours(level)) {
+            features.load(node, nodeFeature);
+            int farthest = 0;
+            double farthestDistance = -1;
+            for (int i = 0; i < count; i++) {
+                double d = features.distance(nodeFeature, list[i]);
+                if (d > farthestDistance) {
+                    farthestDistance = d;
+                    farthest = i;
+                }
+            }
+            list[farthest] = list[--count];
+        }
+        neighbourCounts[node][level] = count;
+    }
+
+    private static int maxNeighbours(int level) {
+        return level == 0 ? MAX_LEVEL0_NEIGHBOURS : M;
+    }
+
+    private LireFeature newFeature() {
+        try {
+            return featureClass.newInstance();
+        } catch (Exception e) {
+            throw new ElasticsearchImageProcessException("Failed to create feature " + featureClass.getSimpleName(), e);
+        }
+    }
+
+    /**
+     * Approximate heap used by the graph
+     */
+    public long ramBytesUsed() {
+        long bytes = 4L * docs.length;
+        for (int node = 0; node < size; node++) {
+            for (int[] list : neighbours[node]) {
+                bytes += 4L * list.length + 16;
+            }
+            bytes += 4L * neighbourCounts[node].length + 32;
+        }
+        return bytes;
+    }
+
+    /**
+     * Give back the bytes charged by {@link #build}, once the segment of the graph is closed
+     */
+    void release() {
+        if (breaker != null) {
+            breaker.addWithoutBreaking(-ramBytesUsed());
+            breaker = null;
+        }
+    }
+
+    /**
+     * Features of the graph nodes read from doc values, with a scratch feature to calculate distances
+     */
+    private final class Features {
+        private final BinaryDocValues values;
+        private final LireFeature scratch = newFeature();
+
+        Features(BinaryDocValues values) {
+            this.values = values;
+        }
+
+        void load(int node, LireFeature feature) {
+            BytesRef bytesRef = values.get(docs[node]);
+            feature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+        }
+
+        double distance(LireFeature query, int node) {
+            load(node, scratch);
+            return query.getDistance(scratch);
+        }
+    }
+}
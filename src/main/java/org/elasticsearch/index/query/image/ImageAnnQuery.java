@@ -0,0 +1,127 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+
+/**
+ * Approximate search without hash, walk the {@link HnswGraph} of every segment and keep top <code>limit</code> docs of the shard.
+ * The graph of a segment is built in the background on first use and dropped when the segment is closed,
+ * until it is built the segment is scanned like {@link ImageScanQuery} does
+ */
+public class ImageAnnQuery extends Query {
+    static final SegmentCache<HnswGraph> GRAPHS = new SegmentCache<HnswGraph>() {
+        @Override
+        protected void onClose(HnswGraph graph) {
+            graph.release();
+        }
+    };
+
+    private final String luceneFieldName;
+    private final LireFeature lireFeature;
+    private final int limit;
+    private final int ef;
+    private final CircuitBreaker breaker;
+    private final ThreadPool threadPool;
+
+    /**
+     * @param limit hits of the shard, negative for <code>from</code> + <code>size</code> of the search
+     */
+    public ImageAnnQuery(String luceneFieldName, LireFeature lireFeature, int limit, int ef, CircuitBreaker breaker,
+                         ThreadPool threadPool, float boost) {
+        this.luceneFieldName = luceneFieldName;
+        this.lireFeature = lireFeature;
+        this.limit = limit;
+        this.ef = ef;
+        this.breaker = breaker;
+        this.threadPool = threadPool;
+        setBoost(boost);
+    }
+
+    @Override
+    public Weight createWeight(final IndexSearcher searcher, boolean needsScores) throws IOException {
+        final int limit = ImageQueryParser.limit(this.limit);
+        return new TopHitsWeight(this) {
+            @Override
+            protected ScoreDoc[] topHits() throws IOException {
+                LireFeature queryFeature = ImageScanQuery.copy(lireFeature);
+                SearchTimeout timeout = SearchTimeout.current();
+                ScoreDocQueue queue = new ScoreDocQueue(limit);
+                for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
+                    LeafReader reader = context.reader();
+                    HnswGraph graph = GRAPHS.getAsync(reader, luceneFieldName, new SegmentCache.Loader<HnswGraph>() {
+                        @Override
+                        public HnswGraph load(LeafReader reader) throws IOException {
+                            return HnswGraph.build(reader, luceneFieldName, lireFeature.getClass(), breaker,
+                                    "hnsw graph [" + luceneFieldName + "]");
+                        }
+                    }, threadPool.executor(ThreadPool.Names.WARMER));
+                    if (graph == null) {    // still building, or failed to build
+                        if (!ImageScanQuery.scan(context, 0, reader.maxDoc(), luceneFieldName, queryFeature, getBoost(), queue, timeout)) {
+                            break;
+                        }
+                        continue;
+                    }
+                    if (graph.size() == 0) {
+                        continue;
+                    }
+
+                    BinaryDocValues values = FeatureMatrixCache.docValues(reader, luceneFieldName);
+                    ImageDocScorer scorer = new ImageDocScorer(luceneFieldName, queryFeature, reader, getBoost());
+                    for (int doc : graph.search(queryFeature, limit, ef, values, reader.getLiveDocs())) {
+                        queue.collect(context.docBase + doc, scorer.score(doc));
+                    }
+                    if (timeout.exceeded()) {
+                        break;
+                    }
+                }
+                return queue.topHits();
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImageAnnQuery))
+            return false;
+        ImageAnnQuery other = (ImageAnnQuery) o;
+        return (this.getBoost() == other.getBoost())
+                && luceneFieldName.equals(other.luceneFieldName)
+                && lireFeature.equals(other.lireFeature)
+                && limit == other.limit
+                && ef == other.ef;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + luceneFieldName.hashCode();
+        result = 31 * result + lireFeature.hashCode();
+        result = 31 * result + limit;
+        result = 31 * result + ef;
+        return result;
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("ann(");
+        buffer.append(luceneFieldName);
+        buffer.append(",");
+        buffer.append(lireFeature.getClass().getSimpleName());
+        buffer.append(",limit=");
+        buffer.append(limit);
+        buffer.append(",ef=");
+        buffer.append(ef);
+        buffer.append(")");
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,56 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchImageProcessException;
+
+import java.io.IOException;
+
+/**
+ * Score arbitrary docs of a segment, used by scorers and by queries which pick the docs to score themselves
+ * score = (1 / distance) * boost
+ */
+final class ImageDocScorer {
+    private final String luceneFieldName;
+    private final LireFeature lireFeature;
+    private final IndexReader reader;
+    private final float boost;
+    private BinaryDocValues binaryDocValues;
+    private LireFeature docFeature;
+
+    ImageDocScorer(String luceneFieldName, LireFeature lireFeature, IndexReader reader, float boost) {
+        this.luceneFieldName = luceneFieldName;
+        this.lireFeature = lireFeature;
+        this.reader = reader;
+        this.boost = boost;
+    }
+
+    public float score(int doc) throws IOException {
+        if (binaryDocValues == null) {
+            LeafReader atomicReader = (LeafReader) reader;
+            binaryDocValues = FeatureMatrixCache.docValues(atomicReader, luceneFieldName);
+        }
+
+        try {
+            if (docFeature == null) {   // reused for every doc of this scorer
+                docFeature = lireFeature.getClass().newInstance();
+            }
+            BytesRef bytesRef = binaryDocValues.get(doc);
+            docFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+
+            double distance = lireFeature.getDistance(docFeature);
+            double score;
+            if (Double.compare(distance, 1.0f) <= 0) { // distance less than 1, consider as same image
+                score = 2f - distance;
+            } else {
+                score = 1 / distance;
+            }
+            return (float)score * boost;
+        } catch (Exception e) {
+            throw new ElasticsearchImageProcessException("Failed to calculate score", e);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ToStringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Query by all hash values at once, postings of every hash term in a segment are walked in a single pass
+ * and the score is only calculated once for each matching doc
+ */
+public class ImageHashCollisionQuery extends Query {
+    private final String hashFieldName;
+    private final String[] hashTerms;
+    private final String luceneFieldName;
+    private final LireFeature lireFeature;
+    private final HashTermPruning pruning;
+    private final int minCollisions;
+    private final int rerankWindow;
+
+    public ImageHashCollisionQuery(String hashFieldName, String[] hashTerms, String luceneFieldName, LireFeature lireFeature, float boost) {
+        this(hashFieldName, hashTerms, luceneFieldName, lireFeature, HashTermPruning.NONE, 1, -1, boost);
+    }
+
+    /**
+     * @param hashTerms     terms of the hash field, see {@link #hashTerms(int[])}
+     * @param pruning       which hash terms are kept, by document frequency in the shard
+     * @param minCollisions minimum number of hash terms a doc must share with the query to be scored
+     * @param rerankWindow  if positive, only this number of docs with most hash collisions in the shard are scored
+     */
+    public ImageHashCollisionQuery(String hashFieldName, String[] hashTerms, String luceneFieldName, LireFeature lireFeature,
+                                   HashTermPruning pruning, int minCollisions, int rerankWindow, float boost) {
+        this.hashFieldName = hashFieldName;
+        this.hashTerms = uniqueTerms(hashTerms);
+        this.luceneFieldName = luceneFieldName;
+        this.lireFeature = lireFeature;
+        this.pruning = pruning;
+        this.minCollisions = minCollisions;
+        this.rerankWindow = rerankWindow;
+        setBoost(boost);
+    }
+
+    /**
+     * Terms of hashes indexed as numbers, by fields not mapped with <code>multi_probe</code>
+     */
+    public static String[] hashTerms(int[] hashes) {
+        String[] terms = new String[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            terms[i] = Integer.toString(hashes[i]);
+        }
+        return terms;
+    }
+
+    private static String[] uniqueTerms(String[] terms) {
+        String[] sorted = terms.clone();
+        Arrays.sort(sorted);
+        int size = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || !sorted[i].equals(sorted[i - 1])) {
+                sorted[size++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, size);
+    }
+
+    @Override
+    public Weight createWeight(final IndexSearcher searcher, boolean needsScores) throws IOException {
+        final IndexReaderContext context = searcher.getTopReaderContext();
+        Term[] terms = new Term[hashTerms.length];
+        TermContext[] termStates = new TermContext[hashTerms.length];
+        for (int i = 0; i < hashTerms.length; i++) {
+            terms[i] = new Term(hashFieldName, hashTerms[i]);
+            termStates[i] = TermContext.build(context, terms[i]);
+        }
+
+        if (pruning.isEnabled()) {
+            int[] docFreqs = new int[termStates.length];
+            for (int i = 0; i < termStates.length; i++) {
+                docFreqs[i] = termStates[i].docFreq();
+            }
+            int[] selected = pruning.select(docFreqs, searcher.getIndexReader().maxDoc());
+            Term[] selectedTerms = new Term[selected.length];
+            TermContext[] selectedStates = new TermContext[selected.length];
+            for (int i = 0; i < selected.length; i++) {
+                selectedTerms[i] = terms[selected[i]];
+                selectedStates[i] = termStates[selected[i]];
+            }
+            terms = selectedTerms;
+            termStates = selectedStates;
+        }
+        final ImageHashCollisionWeight weight = new ImageHashCollisionWeight(terms, termStates);
+        if (rerankWindow > 0) {
+            return new TopHitsWeight(this) {
+                @Override
+                protected ScoreDoc[] topHits() throws IOException {
+                    return rerank(searcher, weight);
+                }
+            };
+        }
+        return weight;
+    }
+
+    /**
+     * Rank all candidates of the shard by number of hash collisions, which only needs postings,
+     * and calculate distance for the top <code>rerankWindow</code> candidates only. Candidates found
+     * before the search <code>timeout</code> are still scored
+     */
+    private ScoreDoc[] rerank(IndexSearcher searcher, ImageHashCollisionWeight weight) throws IOException {
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        SearchTimeout timeout = SearchTimeout.current();
+        ScoreDocQueue candidates = new ScoreDocQueue(rerankWindow);
+        for (LeafReaderContext context : leaves) {
+            if (!collectCandidates(context, weight, candidates, timeout)) {
+                break;
+            }
+        }
+
+        ScoreDoc[] hits = candidates.topHits();
+        Arrays.sort(hits, new Comparator<ScoreDoc>() {  // score segment by segment
+            @Override
+            public int compare(ScoreDoc a, ScoreDoc b) {
+                return Integer.compare(a.doc, b.doc);
+            }
+        });
+        LireFeature queryFeature = ImageScanQuery.copy(lireFeature);
+        ImageDocScorer scorer = null;
+        LeafReaderContext context = null;
+        for (ScoreDoc hit : hits) {
+            if (context == null || hit.doc < context.docBase || hit.doc >= context.docBase + context.reader().maxDoc()) {
+                context = leaves.get(ReaderUtil.subIndex(hit.doc, leaves));
+                scorer = new ImageDocScorer(luceneFieldName, queryFeature, context.reader(), getBoost());
+            }
+            hit.score = scorer.score(hit.doc - context.docBase);
+        }
+        return hits;
+    }
+
+    /**
+     * Collect live docs of the segment by number of hash collisions, false if the search timed out
+     */
+    private static boolean collectCandidates(LeafReaderContext context, ImageHashCollisionWeight weight,
+                                             ScoreDocQueue candidates, SearchTimeout timeout) throws IOException {
+        HashCollisionIterator iterator = weight.collisions(context);
+        if (iterator == null) {
+            return true;
+        }
+        Bits liveDocs = context.reader().getLiveDocs();
+        int count = 0;
+        for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+            if (++count % ImageScanQuery.TIMEOUT_CHECK_INTERVAL == 0 && timeout.exceeded()) {
+                return false;
+            }
+            if (liveDocs == null || liveDocs.get(doc)) {
+                candidates.collect(context.docBase + doc, iterator.collisions());
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImageHashCollisionQuery))
+            return false;
+        ImageHashCollisionQuery other = (ImageHashCollisionQuery) o;
+        return (this.getBoost() == other.getBoost())
+                && hashFieldName.equals(other.hashFieldName)
+                && Arrays.equals(hashTerms, other.hashTerms)
+                && luceneFieldName.equals(other.luceneFieldName)
+                && lireFeature.equals(other.lireFeature)
+                && pruning.equals(other.pruning)
+                && minCollisions == other.minCollisions
+                && rerankWindow == other.rerankWindow;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + hashFieldName.hashCode();
+        result = 31 * result + Arrays.hashCode(hashTerms);
+        result = 31 * result + luceneFieldName.hashCode();
+        result = 31 * result + lireFeature.hashCode();
+        result = 31 * result + pruning.hashCode();
+        result = 31 * result + minCollisions;
+        result = 31 * result + rerankWindow;
+        return result;
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        if (!hashFieldName.equals(field)) {
+            buffer.append(hashFieldName);
+            buffer.append(":");
+        }
+        buffer.append(hashTerms.length);
+        buffer.append(" hashes;");
+        buffer.append(luceneFieldName);
+        buffer.append(",");
+        buffer.append(lireFeature.getClass().getSimpleName());
+        if (pruning.isEnabled()) {
+            buffer.append(",");
+            buffer.append(pruning);
+        }
+        if (minCollisions > 1) {
+            buffer.append(",min_collisions=");
+            buffer.append(minCollisions);
+        }
+        if (rerankWindow > 0) {
+            buffer.append(",rerank_window=");
+            buffer.append(rerankWindow);
+        }
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    final class ImageHashCollisionWeight extends Weight {
+        private final Term[] terms;
+        private final TermContext[] termStates;
+
+        public ImageHashCollisionWeight(Term[] terms, TermContext[] termStates) {
+            super(ImageHashCollisionQuery.this);
+            this.terms = terms;
+            this.termStates = termStates;
+        }
+
+        @Override
+        public String toString() { return "weight(" + ImageHashCollisionQuery.this + ")"; }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            HashCollisionIterator iterator = collisions(context);
+            if (iterator == null) {
+                return null;
+            }
+            return new ImageHashCollisionScorer(this, iterator, context.reader());
+        }
+
+        HashCollisionIterator collisions(LeafReaderContext context) throws IOException {
+            final Terms fieldTerms = context.reader().terms(hashFieldName);
+            if (fieldTerms == null) {
+                return null;
+            }
+            final TermsEnum termsEnum = fieldTerms.iterator();
+            List<PostingsEnum> postings = new ArrayList<>();
+            for (int i = 0; i < terms.length; i++) {
+                assert termStates[i].topReaderContext == ReaderUtil.getTopLevelContext(context) : "The top-reader used to create Weight (" + termStates[i].topReaderContext + ") is not the same as the current reader's top-reader (" + ReaderUtil.getTopLevelContext(context);
+                final TermState state = termStates[i].get(context.ord);
+                if (state == null) { // term is not present in that reader
+                    continue;
+                }
+                termsEnum.seekExact(terms[i].bytes(), state);
+                postings.add(termsEnum.postings(null, PostingsEnum.NONE));
+            }
+            if (postings.size() < minCollisions || postings.isEmpty()) {
+                return null;
+            }
+            return new HashCollisionIterator(postings, minCollisions);
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            Scorer scorer = scorer(context);
+            boolean exists = (scorer != null && scorer.iterator().advance(doc) == doc);
+
+            if (exists) {
+                float value = scorer.score();
+                float score = value;
+                List<Explanation> details = new ArrayList<>();
+                details.add(Explanation.match(scorer.freq(), "hash collisions"));
+                if (getBoost() != 1.0f) {
+                    details.add(Explanation.match(getBoost(), "boost"));
+                    score = score / getBoost();
+                }
+                details.add(Explanation.match(score, "image score (1/distance)"));
+                return Explanation.match(
+                        value, ImageHashCollisionQuery.this.toString() + ", product of:", details);
+            } else {
+                return Explanation.noMatch(ImageHashCollisionQuery.this.toString() + " doesn't match id " + doc);
+            }
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+
+        }
+    }
+
+    final class ImageHashCollisionScorer extends AbstractImageScorer {
+        private final HashCollisionIterator iterator;
+
+        ImageHashCollisionScorer(Weight weight, HashCollisionIterator iterator, IndexReader reader) {
+            super(weight, luceneFieldName, lireFeature, reader, ImageHashCollisionQuery.this.getBoost());
+            this.iterator = iterator;
+        }
+
+        @Override
+        public int docID() {
+            return iterator.docID();
+        }
+
+        @Override
+        public int freq() {
+            return iterator.collisions();
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return iterator;
+        }
+    }
+}
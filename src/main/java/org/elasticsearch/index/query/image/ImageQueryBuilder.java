@@ -18,6 +18,22 @@ public class ImageQueryBuilder extends QueryBuilder implements BoostableQueryBui
 
     private String hash;
 
+    private String mode;
+
+    private int limit = -1;
+
+    private int ef = -1;
+
+    private int rerankWindow = -1;
+
+    private int minCollisions = -1;
+
+    private int probes = -1;
+
+    private int maxTerms = -1;
+
+    private float maxDocFreq = -1;
+
     private float boost = -1;
 
     private String lookupIndex;
@@ -49,6 +65,46 @@ public class ImageQueryBuilder extends QueryBuilder implements BoostableQueryBui
         return this;
     }
 
+    public ImageQueryBuilder mode(String mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public ImageQueryBuilder limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public ImageQueryBuilder ef(int ef) {
+        this.ef = ef;
+        return this;
+    }
+
+    public ImageQueryBuilder rerankWindow(int rerankWindow) {
+        this.rerankWindow = rerankWindow;
+        return this;
+    }
+
+    public ImageQueryBuilder minCollisions(int minCollisions) {
+        this.minCollisions = minCollisions;
+        return this;
+    }
+
+    public ImageQueryBuilder probes(int probes) {
+        this.probes = probes;
+        return this;
+    }
+
+    public ImageQueryBuilder maxTerms(int maxTerms) {
+        this.maxTerms = maxTerms;
+        return this;
+    }
+
+    public ImageQueryBuilder maxDocFreq(float maxDocFreq) {
+        this.maxDocFreq = maxDocFreq;
+        return this;
+    }
+
     public ImageQueryBuilder lookupIndex(String lookupIndex) {
         this.lookupIndex = lookupIndex;
         return this;
@@ -107,6 +163,38 @@ public class ImageQueryBuilder extends QueryBuilder implements BoostableQueryBui
             builder.field("hash", hash);
         }
 
+        if (mode != null) {
+            builder.field("mode", mode);
+        }
+
+        if (limit != -1) {
+            builder.field("limit", limit);
+        }
+
+        if (ef != -1) {
+            builder.field("ef", ef);
+        }
+
+        if (rerankWindow != -1) {
+            builder.field("rerank_window", rerankWindow);
+        }
+
+        if (minCollisions != -1) {
+            builder.field("min_collisions", minCollisions);
+        }
+
+        if (probes != -1) {
+            builder.field("probes", probes);
+        }
+
+        if (maxTerms != -1) {
+            builder.field("max_terms", maxTerms);
+        }
+
+        if (maxDocFreq != -1) {
+            builder.field("max_doc_freq", maxDocFreq);
+        }
+
         if (boost != -1) {
             builder.field("boost", boost);
         }
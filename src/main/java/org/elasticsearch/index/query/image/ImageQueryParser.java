@@ -5,10 +5,6 @@ import net.semanticmetadata.lire.imageanalysis.features.Extractor;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.indexers.hashing.BitSampling;
 import net.semanticmetadata.lire.indexers.hashing.LocalitySensitiveHashing;
-import net.semanticmetadata.lire.utils.ImageUtils;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.ElasticsearchImageProcessException;
@@ -16,30 +12,53 @@ import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
-import org.elasticsearch.common.io.stream.ByteBufferStreamInput;
+import org.elasticsearch.common.lease.Releasable;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.get.GetField;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.image.ExtractedFeature;
 import org.elasticsearch.index.mapper.image.FeatureEnum;
 import org.elasticsearch.index.mapper.image.HashEnum;
+import org.elasticsearch.index.mapper.image.ImageDecoder;
 import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.mapper.image.LshMultiProbe;
+import org.elasticsearch.index.mapper.image.PixelBudget;
+import org.elasticsearch.index.mapper.image.ResamplingEnum;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.query.QueryParser;
 import org.elasticsearch.index.query.QueryParsingException;
+import org.elasticsearch.plugin.image.ImageBreaker;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.threadpool.ThreadPool;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 public class ImageQueryParser implements QueryParser {
 
     public static final String NAME = "image";
 
+    public static final int DEFAULT_LIMIT = 10;
+
+    /** hits of a shard selected up front, like <code>index.max_result_window</code> */
+    public static final int MAX_LIMIT = 10000;
+
+    public static final int DEFAULT_EF = 100;
+
     private Client client;
 
+    private PixelBudget pixelBudget;
+
+    private ImageBreaker imageBreaker;
+
+    private ThreadPool threadPool;
+
     @Inject
-    public ImageQueryParser(Client client) {
+    public ImageQueryParser(Client client, PixelBudget pixelBudget, ImageBreaker imageBreaker, ThreadPool threadPool) {
         this.client = client;
+        this.pixelBudget = pixelBudget;
+        this.imageBreaker = imageBreaker;
+        this.threadPool = threadPool;
     }
 
     @Override
@@ -61,6 +80,14 @@ public class ImageQueryParser implements QueryParser {
         FeatureEnum featureEnum = null;
         byte[] image = null;
         HashEnum hashEnum = null;
+        ModeEnum modeEnum = ModeEnum.HASH;
+        int limit = -1;
+        int ef = DEFAULT_EF;
+        int rerankWindow = -1;
+        int minCollisions = 1;
+        int probes = 0;
+        int maxTerms = -1;
+        float maxDocFreq = -1;
         float boost = 1.0f;
 
         String lookupIndex = parseContext.index().name();
@@ -76,6 +103,8 @@ public class ImageQueryParser implements QueryParser {
             while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
                 if (token == XContentParser.Token.FIELD_NAME) {
                     currentFieldName = parser.currentName();
+                } else if (token == XContentParser.Token.VALUE_NULL) {
+                    // unset parameters, the builder writes the lookup ones anyway
                 } else {
                     try {
                         if ("feature".equals(currentFieldName)) {
@@ -84,6 +113,34 @@ public class ImageQueryParser implements QueryParser {
                             image = parser.binaryValue();
                         } else if ("hash".equals(currentFieldName)) {
                             hashEnum = HashEnum.getByName(parser.text());
+                        } else if ("mode".equals(currentFieldName)) {
+                            modeEnum = ModeEnum.getByName(parser.text());
+                        } else if ("limit".equals(currentFieldName)) {
+                            limit = parser.intValue();
+                            if (limit < 1 || limit > MAX_LIMIT) {
+                                throw new QueryParsingException(parseContext, "[image] query [limit] must be between [1] and [" + MAX_LIMIT + "], got [" + limit + "]");
+                            }
+                        } else if ("ef".equals(currentFieldName)) {
+                            ef = parser.intValue();
+                        } else if ("rerank_window".equals(currentFieldName)) {
+                            rerankWindow = parser.intValue();
+                        } else if ("min_collisions".equals(currentFieldName)) {
+                            minCollisions = parser.intValue();
+                            if (minCollisions < 1) {
+                                throw new QueryParsingException(parseContext, "[image] query [min_collisions] must be positive, got [" + minCollisions + "]");
+                            }
+                        } else if ("probes".equals(currentFieldName)) {
+                            probes = parser.intValue();
+                            if (probes < 0) {
+                                throw new QueryParsingException(parseContext, "[image] query [probes] must not be negative, got [" + probes + "]");
+                            }
+                        } else if ("max_terms".equals(currentFieldName)) {
+                            maxTerms = parser.intValue();
+                            if (maxTerms < 0) {
+                                throw new QueryParsingException(parseContext, "[image] query [max_terms] must not be negative, got [" + maxTerms + "]");
+                            }
+                        } else if ("max_doc_freq".equals(currentFieldName)) {
+                            maxDocFreq = parser.floatValue();
                         } else if ("boost".equals(currentFieldName)) {
                             boost = parser.floatValue();
                         } else if ("index".equals(currentFieldName)) {
@@ -99,8 +156,8 @@ public class ImageQueryParser implements QueryParser {
                         } else {
                             throw new QueryParsingException(parseContext, "[image] query does not support [" + currentFieldName + "]");
                         }
-                    } catch (Exception e) {
-                        continue;
+                    } catch (IllegalArgumentException e) {   // unknown enum names and malformed numbers
+                        throw new QueryParsingException(parseContext, "[image] query has an invalid value for [" + currentFieldName + "]", e);
                     }
                 }
             }
@@ -116,18 +173,34 @@ public class ImageQueryParser implements QueryParser {
 
         String luceneFieldName = field + "." + featureEnum.name();
         LireFeature lireFeature = null;
+        MappedFieldType fieldType = parseContext.fieldMapper(field);
 
         if (image != null) {
             
+            // decode like the indexed images of the field
+            int maxDimension = ImageMapper.MAX_IMAGE_DIMENSION;
+            ResamplingEnum resampling = ResamplingEnum.BILINEAR;
+            boolean subsampling = false;
+            if (fieldType instanceof ImageMapper.ImageFieldType) {
+                maxDimension = ((ImageMapper.ImageFieldType) fieldType).maxDimension();
+                resampling = ((ImageMapper.ImageFieldType) fieldType).resampling();
+                subsampling = ((ImageMapper.ImageFieldType) fieldType).subsampling();
+            }
+
+            long pixels = ImageDecoder.pixels(image, maxDimension, resampling, subsampling);
+            if (pixels < 0) {
+                throw new QueryParsingException(parseContext, "Unsupported image format");
+            }
+            // not wrapped, the search reports the rejection of the shard as 429
+            Releasable admission = pixelBudget.admit(pixels, "query image extraction");
             try {
                 lireFeature = featureEnum.getFeatureClass().newInstance();
-                BufferedImage img = ImageIO.read(new ByteBufferStreamInput(ByteBuffer.wrap(image)));
-                if (Math.max(img.getHeight(), img.getWidth()) > ImageMapper.MAX_IMAGE_DIMENSION) {
-                    img = ImageUtils.scaleImage(img, ImageMapper.MAX_IMAGE_DIMENSION);
-                }
+                BufferedImage img = ImageDecoder.decode(image, maxDimension, resampling, subsampling);
                 ((Extractor)lireFeature).extract(img);
             } catch (Exception e) {
                 throw new ElasticsearchImageProcessException("Failed to parse image", e);
+            } finally {
+                admission.close();
             }
             
         } else if (lookupIndex != null && lookupType != null && lookupId != null) {
@@ -160,30 +233,64 @@ public class ImageQueryParser implements QueryParser {
         
         if (lireFeature == null)
             throw new QueryParsingException(parseContext, "No feature found for image query or missing parameters");
-        
+
+        if (modeEnum == ModeEnum.SCAN || modeEnum == ModeEnum.ANN) {
+            if (modeEnum == ModeEnum.ANN) {
+                if (ef < 1 || ef > MAX_LIMIT) {
+                    throw new QueryParsingException(parseContext, "[image] query [ef] must be between [1] and [" + MAX_LIMIT + "], got [" + ef + "]");
+                }
+                return new ImageAnnQuery(luceneFieldName, lireFeature, limit, ef, imageBreaker.breaker(), threadPool, boost);
+            }
+            return new ImageScanQuery(luceneFieldName, lireFeature, limit, threadPool, boost);
+        } else if (modeEnum == ModeEnum.RESCORE) {
+            return new ImageRescoreQuery(luceneFieldName, lireFeature, boost);
+        } else if (modeEnum != ModeEnum.HASH) {
+            throw new QueryParsingException(parseContext, "[image] query does not support mode [" + modeEnum.name().toLowerCase() + "]");
+        }
 
         if (hashEnum == null) 
             throw new QueryParsingException(parseContext, "No hash found for image query");
             
-        int[] hash = null;
+        boolean multiProbe = hashEnum == HashEnum.LSH && fieldType instanceof ImageMapper.ImageFieldType
+                && ((ImageMapper.ImageFieldType) fieldType).multiProbe();
+        if (probes > 0 && !multiProbe) {
+            throw new QueryParsingException(parseContext, "[image] query [probes] needs the LSH hash on a field mapped with ["
+                    + ImageMapper.MULTI_PROBE + "]");
+        }
+
+        String[] hashTerms = null;
         
         if (hashEnum.equals(HashEnum.BIT_SAMPLING)) {
-            hash = BitSampling.generateHashes(lireFeature.getFeatureVector());
+            hashTerms = ImageHashCollisionQuery.hashTerms(BitSampling.generateHashes(ExtractedFeature.indexedVector(lireFeature)));
+        } else if (multiProbe) {
+            hashTerms = LshMultiProbe.probeTerms(ExtractedFeature.indexedVector(lireFeature), probes);
         } else if (hashEnum.equals(HashEnum.LSH)) {
-            hash = LocalitySensitiveHashing.generateHashes(lireFeature.getFeatureVector());
+            hashTerms = ImageHashCollisionQuery.hashTerms(LocalitySensitiveHashing.generateHashes(ExtractedFeature.indexedVector(lireFeature)));
         }            
 
-        String hashFieldName = luceneFieldName + "." + ImageMapper.HASH + "." + hashEnum.name();
+        if (rerankWindow > MAX_LIMIT) {
+            throw new QueryParsingException(parseContext, "[image] query [rerank_window] must be at most [" + MAX_LIMIT + "], got [" + rerankWindow + "]");
+        }
 
-        BooleanQuery.Builder builder=new BooleanQuery.Builder().setDisableCoord(true);
+        String hashFieldName = luceneFieldName + "." + ImageMapper.HASH + "." + hashEnum.name();
 
-        ImageScoreCache imageScoreCache = new ImageScoreCache();
+        return new ImageHashCollisionQuery(hashFieldName, hashTerms, luceneFieldName, lireFeature,
+                new HashTermPruning(maxTerms, maxDocFreq), minCollisions, rerankWindow, boost);
+    }
 
-        for (int h : hash) {                   
-            builder.add(new BooleanClause(new ImageHashQuery(new Term(hashFieldName, Integer.toString(h)), luceneFieldName, lireFeature, imageScoreCache, boost), BooleanClause.Occur.SHOULD));
-	}
-            
-        return builder.build();
+    /**
+     * The given limit, or the number of docs a shard returns for the current search, from + size, when it is negative.
+     * Resolved when the query is searched, <code>from</code> and <code>size</code> may follow the query in the request
+     */
+    public static int limit(int limit) {
+        if (limit >= 0) {
+            return limit;
+        }
+        SearchContext searchContext = SearchContext.current();
+        if (searchContext == null) {
+            return DEFAULT_LIMIT;
+        }
+        int defaultLimit = Math.max(searchContext.from(), 0) + (searchContext.size() >= 0 ? searchContext.size() : DEFAULT_LIMIT);
+        return Math.min(defaultLimit, MAX_LIMIT);
     }
-        
 }
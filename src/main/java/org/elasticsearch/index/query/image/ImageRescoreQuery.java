@@ -0,0 +1,166 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ToStringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Match every doc having the feature and only calculate distance when a doc is scored,
+ * used as <code>rescore_query</code> only the docs of the rescore window are scored
+ */
+public class ImageRescoreQuery extends Query {
+    private final String luceneFieldName;
+    private final LireFeature lireFeature;
+
+    public ImageRescoreQuery(String luceneFieldName, LireFeature lireFeature, float boost) {
+        this.luceneFieldName = luceneFieldName;
+        this.lireFeature = lireFeature;
+        setBoost(boost);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        return new ImageRescoreWeight();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImageRescoreQuery))
+            return false;
+        ImageRescoreQuery other = (ImageRescoreQuery) o;
+        return (this.getBoost() == other.getBoost())
+                && luceneFieldName.equals(other.luceneFieldName)
+                && lireFeature.equals(other.lireFeature);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + luceneFieldName.hashCode();
+        result = 31 * result + lireFeature.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("rescore(");
+        buffer.append(luceneFieldName);
+        buffer.append(",");
+        buffer.append(lireFeature.getClass().getSimpleName());
+        buffer.append(")");
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    final class ImageRescoreWeight extends Weight {
+
+        public ImageRescoreWeight() {
+            super(ImageRescoreQuery.this);
+        }
+
+        @Override
+        public String toString() { return "weight(" + ImageRescoreQuery.this + ")"; }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            Bits docsWithField = context.reader().getDocsWithField(luceneFieldName);
+            if (docsWithField == null) {
+                return null;
+            }
+            return new ImageRescoreScorer(this, docsWithField, context.reader());
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            Scorer scorer = scorer(context);
+            boolean exists = (scorer != null && scorer.iterator().advance(doc) == doc);
+
+            if (exists) {
+                float value = scorer.score();
+                float score = value;
+                List<Explanation> details = new ArrayList<>();
+                if (getBoost() != 1.0f) {
+                    details.add(Explanation.match(getBoost(), "boost"));
+                    score = score / getBoost();
+                }
+                details.add(Explanation.match(score, "image score (1/distance)"));
+                return Explanation.match(
+                        value, ImageRescoreQuery.this.toString() + ", product of:", details);
+            } else {
+                return Explanation.noMatch(ImageRescoreQuery.this.toString() + " doesn't match id " + doc);
+            }
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+
+        }
+    }
+
+    final class ImageRescoreScorer extends AbstractImageScorer {
+        private final Bits docsWithField;
+        private final int maxDoc;
+        private int doc = -1;
+
+        ImageRescoreScorer(Weight weight, Bits docsWithField, IndexReader reader) {
+            super(weight, luceneFieldName, lireFeature, reader, ImageRescoreQuery.this.getBoost());
+            this.docsWithField = docsWithField;
+            this.maxDoc = reader.maxDoc();
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return new DocIdSetIterator() {
+
+                @Override
+                public int docID() {
+                    return doc;
+                }
+
+                @Override
+                public int nextDoc() throws IOException {
+                    return advance(doc + 1);
+                }
+
+                @Override
+                public int advance(int target) throws IOException {
+                    for (int i = target; i < maxDoc; i++) {
+                        if (docsWithField.get(i)) {
+                            return doc = i;
+                        }
+                    }
+                    return doc = NO_MORE_DOCS;
+                }
+
+                @Override
+                public long cost() {
+                    return maxDoc;
+                }
+            };
+        }
+    }
+}
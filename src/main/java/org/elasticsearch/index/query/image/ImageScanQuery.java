@@ -0,0 +1,227 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.plugin.image.ImagePlugin;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exact search without hash, score feature of every doc and keep top <code>limit</code> docs of the shard.
+ * Segments are split in chunks which the first scorer scans on the search thread and on idle threads of the
+ * <code>image_scan</code> pool, the scan stops with the hits found so far once the search <code>timeout</code> is reached
+ */
+public class ImageScanQuery extends Query {
+    static final int TIMEOUT_CHECK_INTERVAL = 1 << 10;
+    static final int SCAN_CHUNK_SIZE = 1 << 16;
+
+    private final String luceneFieldName;
+    private final LireFeature lireFeature;
+    private final int limit;
+    private final ThreadPool threadPool;
+
+    /**
+     * @param limit hits of the shard, negative for <code>from</code> + <code>size</code> of the search
+     */
+    public ImageScanQuery(String luceneFieldName, LireFeature lireFeature, int limit, ThreadPool threadPool, float boost) {
+        this.luceneFieldName = luceneFieldName;
+        this.lireFeature = lireFeature;
+        this.limit = limit;
+        this.threadPool = threadPool;
+        setBoost(boost);
+    }
+
+    @Override
+    public Weight createWeight(final IndexSearcher searcher, boolean needsScores) throws IOException {
+        final int limit = ImageQueryParser.limit(this.limit);
+        return new TopHitsWeight(this) {
+            @Override
+            protected ScoreDoc[] topHits() throws IOException {
+                SearchTimeout timeout = SearchTimeout.current();
+                List<ScanChunk> chunks = new ArrayList<>();
+                for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
+                    int maxDoc = context.reader().maxDoc();
+                    for (int from = 0; from < maxDoc; from += SCAN_CHUNK_SIZE) {
+                        chunks.add(new ScanChunk(context, from, Math.min(maxDoc, from + SCAN_CHUNK_SIZE), limit, getBoost(), timeout));
+                    }
+                }
+                scanAll(chunks);
+
+                ScoreDocQueue queue = new ScoreDocQueue(limit);
+                for (ScanChunk chunk : chunks) {
+                    queue.collectAll(chunk.queue.topHits());
+                }
+                return queue.topHits();
+            }
+        };
+    }
+
+    /**
+     * Scan the chunks on this thread with the help of idle scan threads. Threads take chunks in turn, so this thread
+     * only waits for chunks another thread is already scanning, never for a helper still queued in a busy pool
+     */
+    private void scanAll(final List<ScanChunk> chunks) throws IOException {
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(chunks.size());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int index;
+                while ((index = next.getAndIncrement()) < chunks.size()) {
+                    try {
+                        if (failure.get() == null) {
+                            chunks.get(index).scan();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+
+        ThreadPool.Info pool = threadPool.info(ImagePlugin.SCAN_THREAD_POOL);
+        int helpers = Math.min(chunks.size(), pool == null ? 1 : pool.getMax() + 1) - 1;
+        Executor executor = threadPool.executor(ImagePlugin.SCAN_THREAD_POOL);
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(worker);
+            } catch (EsRejectedExecutionException e) {   // pool saturated, this thread scans the rest
+                break;
+            }
+        }
+        worker.run();
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticsearchImageProcessException("Interrupted while scanning images", e);
+        }
+        Throwable t = failure.get();
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new ElasticsearchImageProcessException("Failed to scan images", t);
+        }
+    }
+
+    /**
+     * Score every live doc in [from, to) of the segment having the feature into the queue, false if the search timed out
+     */
+    static boolean scan(LeafReaderContext context, int from, int to, String luceneFieldName, LireFeature queryFeature,
+                        float boost, ScoreDocQueue queue, SearchTimeout timeout) throws IOException {
+        LeafReader reader = context.reader();
+        Bits docsWithField = reader.getDocsWithField(luceneFieldName);
+        if (docsWithField == null) {
+            return true;
+        }
+        Bits liveDocs = reader.getLiveDocs();
+
+        ImageDocScorer scorer = new ImageDocScorer(luceneFieldName, queryFeature, reader, boost);
+        for (int doc = from; doc < to; doc++) {
+            if ((doc - from) % TIMEOUT_CHECK_INTERVAL == 0 && timeout.exceeded()) {
+                return false;
+            }
+            if (!docsWithField.get(doc) || (liveDocs != null && !liveDocs.get(doc))) {
+                continue;
+            }
+            queue.collect(context.docBase + doc, scorer.score(doc));
+        }
+        return true;
+    }
+
+    /**
+     * LIRE features keep temporary state in getDistance, concurrent searches must not share the query feature
+     */
+    static LireFeature copy(LireFeature lireFeature) {
+        try {
+            LireFeature queryFeature = lireFeature.getClass().newInstance();
+            queryFeature.setByteArrayRepresentation(lireFeature.getByteArrayRepresentation());
+            return queryFeature;
+        } catch (Exception e) {
+            throw new ElasticsearchImageProcessException("Failed to copy query feature", e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImageScanQuery))
+            return false;
+        ImageScanQuery other = (ImageScanQuery) o;
+        return (this.getBoost() == other.getBoost())
+                && luceneFieldName.equals(other.luceneFieldName)
+                && lireFeature.equals(other.lireFeature)
+                && limit == other.limit;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + luceneFieldName.hashCode();
+        result = 31 * result + lireFeature.hashCode();
+        result = 31 * result + limit;
+        return result;
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("scan(");
+        buffer.append(luceneFieldName);
+        buffer.append(",");
+        buffer.append(lireFeature.getClass().getSimpleName());
+        buffer.append(",limit=");
+        buffer.append(limit);
+        buffer.append(")");
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    /**
+     * Docs [from, to) of one segment with their own top hits. LIRE features keep temporary state in getDistance, so each
+     * chunk has its own copy of the query feature, doc values are taken by the thread scanning the chunk
+     */
+    final class ScanChunk {
+        private final LeafReaderContext context;
+        private final int from;
+        private final int to;
+        private final LireFeature queryFeature;
+        private final float boost;
+        private final SearchTimeout timeout;
+        final ScoreDocQueue queue;
+
+        ScanChunk(LeafReaderContext context, int from, int to, int limit, float boost, SearchTimeout timeout) {
+            this.context = context;
+            this.from = from;
+            this.to = to;
+            this.queryFeature = copy(lireFeature);
+            this.boost = boost;
+            this.timeout = timeout;
+            this.queue = new ScoreDocQueue(limit);
+        }
+
+        void scan() throws IOException {
+            ImageScanQuery.scan(context, from, to, luceneFieldName, queryFeature, boost, queue, timeout);
+        }
+    }
+}
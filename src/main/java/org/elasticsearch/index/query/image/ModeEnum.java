@@ -0,0 +1,13 @@
+package org.elasticsearch.index.query.image;
+
+
+/**
+ * How candidates of an image query are found
+ */
+public enum ModeEnum {
+    HASH, SCAN, RESCORE, ANN, IVF;
+
+    public static ModeEnum getByName(String name) {
+        return valueOf(name.toUpperCase());
+    }
+}
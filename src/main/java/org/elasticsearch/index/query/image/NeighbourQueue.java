@@ -0,0 +1,82 @@
+package org.elasticsearch.index.query.image;
+
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Binary heap of nodes ordered by distance, closest first or farthest first, without boxing
+ */
+public final class NeighbourQueue {
+    private final boolean farthestFirst;
+    private int[] nodes = new int[16];
+    private double[] distances = new double[16];
+    private int size;
+
+    public NeighbourQueue(boolean farthestFirst) {
+        this.farthestFirst = farthestFirst;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int topNode() {
+        return nodes[0];
+    }
+
+    public double topDistance() {
+        return distances[0];
+    }
+
+    public void add(int node, double distance) {
+        if (size == nodes.length) {
+            nodes = ArrayUtil.grow(nodes, size + 1);
+            distances = ArrayUtil.grow(distances, size + 1);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(distance, distances[parent])) {
+                break;
+            }
+            nodes[i] = nodes[parent];
+            distances[i] = distances[parent];
+            i = parent;
+        }
+        nodes[i] = node;
+        distances[i] = distance;
+    }
+
+    public int pop() {
+        int top = nodes[0];
+        size--;
+        int node = nodes[size];
+        double distance = distances[size];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && before(distances[child + 1], distances[child])) {
+                child++;
+            }
+            if (!before(distances[child], distance)) {
+                break;
+            }
+            nodes[i] = nodes[child];
+            distances[i] = distances[child];
+            i = child;
+        }
+        nodes[i] = node;
+        distances[i] = distance;
+        return top;
+    }
+
+    private boolean before(double a, double b) {
+        return farthestFirst ? a > b : a < b;
+    }
+}
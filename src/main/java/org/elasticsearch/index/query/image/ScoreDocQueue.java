@@ -0,0 +1,55 @@
+package org.elasticsearch.index.query.image;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.PriorityQueue;
+
+/**
+ * Bounded queue keeping the best scored docs, lower doc id wins on equal score
+ */
+public class ScoreDocQueue extends PriorityQueue<ScoreDoc> {
+    private final int maxSize;
+
+    public ScoreDocQueue(int maxSize) {
+        super(maxSize);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Add a hit if it is competitive, reusing the evicted {@link ScoreDoc} when queue is full
+     */
+    public void collect(int doc, float score) {
+        if (size() < maxSize) {
+            add(new ScoreDoc(doc, score));
+        } else if (maxSize > 0 && (score > top().score || (score == top().score && doc < top().doc))) {
+            ScoreDoc top = top();
+            top.doc = doc;
+            top.score = score;
+            updateTop();
+        }
+    }
+
+    public void collectAll(ScoreDoc[] hits) {
+        for (ScoreDoc hit : hits) {
+            collect(hit.doc, hit.score);
+        }
+    }
+
+    /**
+     * Empty the queue, hits are returned best first
+     */
+    public ScoreDoc[] topHits() {
+        ScoreDoc[] hits = new ScoreDoc[size()];
+        for (int i = hits.length - 1; i >= 0; i--) {
+            hits[i] = pop();
+        }
+        return hits;
+    }
+
+    @Override
+    protected boolean lessThan(ScoreDoc a, ScoreDoc b) {
+        if (a.score == b.score) {
+            return a.doc > b.doc;
+        }
+        return a.score < b.score;
+    }
+}
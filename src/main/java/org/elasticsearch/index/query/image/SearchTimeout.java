@@ -0,0 +1,44 @@
+package org.elasticsearch.index.query.image;
+
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeout of the current search for queries which select their hits before they are collected. They check it while
+ * scanning and stop with the best hits found so far, the shard then reports <code>timed_out</code> like it does when
+ * the collector times out
+ */
+public final class SearchTimeout {
+    private static final SearchTimeout NONE = new SearchTimeout(null, 0);
+
+    private final SearchContext context;
+    private final long deadline;
+
+    private SearchTimeout(SearchContext context, long deadline) {
+        this.context = context;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Timeout of the search running on this thread, counted from now
+     */
+    public static SearchTimeout current() {
+        SearchContext context = SearchContext.current();
+        if (context == null || context.timeoutInMillis() <= 0) {
+            return NONE;
+        }
+        return new SearchTimeout(context, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(context.timeoutInMillis()));
+    }
+
+    /**
+     * Whether the search ran out of time, marks the shard result as timed out if so
+     */
+    public boolean exceeded() {
+        if (context == null || System.nanoTime() - deadline < 0) {
+            return false;
+        }
+        context.queryResult().searchTimedOut(true);
+        return true;
+    }
+}
@@ -0,0 +1,213 @@
+package org.elasticsearch.index.query.image;
+
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cache structures built from a segment as long as the segment is open, entries are keyed by segment core
+ * and by name, and are dropped when the segment core is closed, e.g. after it was merged away.
+ * Failed loads are dropped, the next use of the segment loads it again
+ */
+public class SegmentCache<T> {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(SegmentCache.class.getName());
+
+    public interface Loader<T> {
+        T load(LeafReader reader) throws IOException;
+    }
+
+    private final ConcurrentMap<Object, ConcurrentMap<String, Entry>> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Get entry of the segment, load it if missing, concurrent callers wait for the same load
+     */
+    public T get(LeafReader reader, String key, Loader<T> loader) throws IOException {
+        Entry entry = entry(reader, key, loader);
+        entry.run();    // no op if the entry is already loaded or being loaded
+
+        try {
+            return entry.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticsearchImageProcessException("Interrupted while loading [" + key + "]", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ElasticsearchImageProcessException("Failed to load [" + key + "]", e.getCause());
+        }
+    }
+
+    /**
+     * Get entry of the segment if it is already loaded, otherwise start loading it on the executor and return null
+     * without waiting. Null is returned as well if the load failed. The segment is kept open until the load is done,
+     * the search which started it may release its reader before
+     */
+    public T getAsync(final LeafReader reader, final String key, Loader<T> loader, Executor executor) {
+        final Entry entry = entry(reader, key, loader);
+        if (entry.scheduled.compareAndSet(false, true)) {
+            final LeafReader segmentReader = FilterLeafReader.unwrap(reader);
+            if (!segmentReader.tryIncRef()) {   // closed, nothing to load
+                entry.drop();
+                return null;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            entry.run();
+                            if (entry.isDone() && entry.loaded() == null) {
+                                try {
+                                    entry.get();
+                                } catch (Exception e) {
+                                    logger.warn("failed to load [{}] of segment [{}]", e, key, reader);
+                                }
+                            }
+                        } finally {
+                            decRef(segmentReader);
+                        }
+                    }
+                });
+            } catch (EsRejectedExecutionException e) {
+                decRef(segmentReader);
+                entry.drop();
+                return null;
+            }
+        }
+        return entry.loaded();
+    }
+
+    private static void decRef(LeafReader reader) {
+        try {
+            reader.decRef();
+        } catch (IOException e) {
+            logger.warn("failed to release segment [{}]", e, reader);
+        }
+    }
+
+    /**
+     * Get entry of the segment if it is already loaded, never loads nor waits
+     */
+    public T peek(LeafReader reader, String key) {
+        ConcurrentMap<String, Entry> entries = cache.get(reader.getCoreCacheKey());
+        if (entries == null) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.loaded();
+    }
+
+    /**
+     * Called once for each loaded entry of a segment, when the segment is closed or when the load completes after that
+     */
+    protected void onClose(T value) {
+    }
+
+    private Entry entry(final LeafReader reader, String key, Loader<T> loader) {
+        final Object coreKey = reader.getCoreCacheKey();
+        ConcurrentMap<String, Entry> entries = cache.get(coreKey);
+        if (entries == null) {
+            entries = new ConcurrentHashMap<>();
+            ConcurrentMap<String, Entry> existing = cache.putIfAbsent(coreKey, entries);
+            if (existing != null) {
+                entries = existing;
+            } else {
+                reader.addCoreClosedListener(new LeafReader.CoreClosedListener() {
+                    @Override
+                    public void onClose(Object ownerCoreCacheKey) {
+                        ConcurrentMap<String, Entry> removed = cache.remove(ownerCoreCacheKey);
+                        if (removed != null) {
+                            for (Entry entry : removed.values()) {
+                                entry.close();
+                            }
+                        }
+                    }
+                });
+            }
+        }
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            Entry newEntry = new Entry(coreKey, entries, key, reader, loader);
+            entry = entries.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        return entry;
+    }
+
+    private final class Entry extends FutureTask<T> {
+        private final Object coreKey;
+        private final ConcurrentMap<String, Entry> entries;
+        private final String key;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Entry(Object coreKey, ConcurrentMap<String, Entry> entries, String key, final LeafReader reader, final Loader<T> loader) {
+            super(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return loader.load(reader);
+                }
+            });
+            this.coreKey = coreKey;
+            this.entries = entries;
+            this.key = key;
+        }
+
+        @Override
+        protected void done() {
+            if (cache.get(coreKey) != entries) {    // segment was closed while loading
+                close();
+            } else if (failed()) {
+                drop();
+            }
+        }
+
+        private boolean failed() {
+            try {
+                get();
+                return false;
+            } catch (Exception e) {
+                return true;
+            }
+        }
+
+        /**
+         * Forget the entry, the next caller creates and loads a new one
+         */
+        void drop() {
+            entries.remove(key, this);
+        }
+
+        void close() {
+            T value = loaded();
+            if (value != null && closed.compareAndSet(false, true)) {
+                onClose(value);
+            }
+        }
+
+        T loaded() {
+            if (!isDone()) {
+                return null;
+            }
+            try {
+                return get();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.elasticsearch.index.query.image;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+
+/**
+ * Weight for queries which select and score their top hits for the whole shard, scorers only replay the hits
+ * of each segment in doc id order. Hits are selected by the first scorer, on the search thread,
+ * so a weight which is never asked for a scorer costs nothing
+ */
+public abstract class TopHitsWeight extends Weight {
+    private int[] docs;     // null until the hits are selected
+    private float[] scores;
+
+    protected TopHitsWeight(Query query) {
+        super(query);
+    }
+
+    /**
+     * Top hits of the shard, with doc ids relative to the top level reader. Called once
+     */
+    protected abstract ScoreDoc[] topHits() throws IOException;
+
+    private synchronized void load() throws IOException {
+        if (docs != null) {
+            return;
+        }
+        ScoreDoc[] sorted = topHits().clone();
+        Arrays.sort(sorted, new Comparator<ScoreDoc>() {
+            @Override
+            public int compare(ScoreDoc a, ScoreDoc b) {
+                return Integer.compare(a.doc, b.doc);
+            }
+        });
+        int[] docs = new int[sorted.length];
+        float[] scores = new float[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            docs[i] = sorted[i].doc;
+            scores[i] = sorted[i].score;
+        }
+        this.scores = scores;
+        this.docs = docs;
+    }
+
+    @Override
+    public String toString() { return "weight(" + getQuery() + ")"; }
+
+    @Override
+    public float getValueForNormalization() {
+        return 1f;
+    }
+
+    @Override
+    public void normalize(float queryNorm, float topLevelBoost) {
+    }
+
+    @Override
+    public Scorer scorer(LeafReaderContext context) throws IOException {
+        load();
+        int from = lowerBound(context.docBase);
+        int to = lowerBound(context.docBase + context.reader().maxDoc());
+        if (from == to) {
+            return null;
+        }
+        return new TopHitsScorer(this, context.docBase, from, to);
+    }
+
+    private int lowerBound(int doc) {
+        int index = Arrays.binarySearch(docs, doc);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    @Override
+    public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+        Scorer scorer = scorer(context);
+        boolean exists = (scorer != null && scorer.iterator().advance(doc) == doc);
+
+        if (exists) {
+            return Explanation.match(scorer.score(), getQuery().toString() + ", top hit score");
+        } else {
+            return Explanation.noMatch(getQuery().toString() + " doesn't match id " + doc);
+        }
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+
+    }
+
+    final class TopHitsScorer extends Scorer {
+        private final int docBase;
+        private final int from;
+        private final int to;
+        private int index;
+        private int doc = -1;
+
+        TopHitsScorer(Weight weight, int docBase, int from, int to) {
+            super(weight);
+            this.docBase = docBase;
+            this.from = from;
+            this.to = to;
+            this.index = from - 1;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public float score() throws IOException {
+            return scores[index];
+        }
+
+        @Override
+        public int freq() {
+            return 1;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return new DocIdSetIterator() {
+
+                @Override
+                public int docID() {
+                    return doc;
+                }
+
+                @Override
+                public int nextDoc() throws IOException {
+                    index++;
+                    return doc = index < to ? docs[index] - docBase : NO_MORE_DOCS;
+                }
+
+                @Override
+                public int advance(int target) throws IOException {
+                    while (++index < to) {
+                        if (docs[index] - docBase >= target) {
+                            return doc = docs[index] - docBase;
+                        }
+                    }
+                    return doc = NO_MORE_DOCS;
+                }
+
+                @Override
+                public long cost() {
+                    return to - from;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.elasticsearch.plugin.image;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.indices.breaker.BreakerSettings;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+
+/**
+ * Registers the <code>image</code> circuit breaker, which accounts for image extraction and for the feature caches of the plugin
+ */
+public class ImageBreaker extends AbstractComponent {
+
+    public static final String NAME = "image";
+    public static final String LIMIT_SETTING = "image.breaker.limit";
+    public static final String OVERHEAD_SETTING = "image.breaker.overhead";
+    public static final String DEFAULT_LIMIT = "10%";
+
+    private final CircuitBreaker breaker;
+
+    @Inject
+    public ImageBreaker(Settings settings, CircuitBreakerService breakerService) {
+        super(settings);
+        breakerService.registerBreaker(new BreakerSettings(NAME,
+                settings.getAsMemory(LIMIT_SETTING, DEFAULT_LIMIT).bytes(),
+                settings.getAsDouble(OVERHEAD_SETTING, 1.0),
+                CircuitBreaker.Type.MEMORY));
+        this.breaker = breakerService.getBreaker(NAME);
+    }
+
+    public CircuitBreaker breaker() {
+        return breaker;
+    }
+}
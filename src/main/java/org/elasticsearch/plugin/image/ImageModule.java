@@ -0,0 +1,30 @@
+package org.elasticsearch.plugin.image;
+
+import org.elasticsearch.common.inject.AbstractModule;
+import org.elasticsearch.index.mapper.image.ExtractionCache;
+import org.elasticsearch.index.mapper.image.ImageBackfillService;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.mapper.image.PixelBudget;
+import org.elasticsearch.index.query.image.FeatureMatrixCache;
+
+/**
+ * Node level services of the plugin
+ */
+public class ImageModule extends AbstractModule {
+
+    private final ImageMapper.TypeParser imageTypeParser;
+
+    public ImageModule(ImageMapper.TypeParser imageTypeParser) {
+        this.imageTypeParser = imageTypeParser;
+    }
+
+    @Override
+    protected void configure() {
+        bind(ImageBreaker.class).asEagerSingleton();
+        bind(PixelBudget.class).asEagerSingleton();
+        bind(ExtractionCache.class).asEagerSingleton();
+        bind(ImageBackfillService.class).asEagerSingleton();
+        bind(FeatureMatrixCache.class).asEagerSingleton();
+        requestInjection(imageTypeParser);
+    }
+}
@@ -1,16 +1,46 @@
 package org.elasticsearch.plugin.image;
 
+import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.index.mapper.descriptor.DescriptorMapper;
+import org.elasticsearch.index.mapper.image.ImageBackfillService;
+import org.elasticsearch.index.mapper.image.ImageBulkExtractionFilter;
 import org.elasticsearch.index.mapper.image.ImageMapper;
 import org.elasticsearch.index.query.descriptor.DescriptorQueryParser;
 import org.elasticsearch.index.query.image.ImageQueryParser;
 import org.elasticsearch.indices.IndicesModule;
 import org.elasticsearch.plugins.Plugin;
-import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.rest.RestModule;
+
+import java.util.Collection;
+import java.util.Collections;
 
 
 public class ImagePlugin extends Plugin {
 
+    /**
+     * Fixed size pool extracting the features of an image in parallel, sized with <code>threadpool.image_extract.size</code>
+     * and <code>threadpool.image_extract.queue_size</code>, reported in node stats like the built in pools
+     */
+    public static final String EXTRACT_THREAD_POOL = "image_extract";
+
+    /**
+     * Fixed size pool scanning the segments of a shard in parallel for <code>scan</code> image queries, sized with
+     * <code>threadpool.image_scan.size</code> and <code>threadpool.image_scan.queue_size</code>
+     */
+    public static final String SCAN_THREAD_POOL = "image_scan";
+
+    private final ImageMapper.TypeParser imageTypeParser = new ImageMapper.TypeParser();
+
+    private final Settings settings;
+
+    public ImagePlugin(Settings settings) {
+        this.settings = settings;
+    }
+
     @Override
     public String name() {
         return "image";
@@ -21,8 +51,41 @@ public class ImagePlugin extends Plugin {
         return "Elasticsearch Image Plugin";
     }
 
+    @Override
+    public Settings additionalSettings() {
+        String extract = "threadpool." + EXTRACT_THREAD_POOL + ".";
+        String scan = "threadpool." + SCAN_THREAD_POOL + ".";
+        return Settings.builder()
+                .put(extract + "type", "fixed")
+                .put(extract + "size", EsExecutors.boundedNumberOfProcessors(settings))
+                .put(extract + "queue_size", 200)
+                .put(scan + "type", "fixed")
+                .put(scan + "size", EsExecutors.boundedNumberOfProcessors(settings))
+                .put(scan + "queue_size", 1000)
+                .build();
+    }
+
+    @Override
+    public Collection<Module> nodeModules() {
+        return Collections.<Module>singletonList(new ImageModule(imageTypeParser));
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")   // raw in the Plugin interface
+    public Collection<Class<? extends LifecycleComponent>> nodeServices() {
+        return Collections.<Class<? extends LifecycleComponent>>singletonList(ImageBackfillService.class);
+    }
+
+    public void onModule(ActionModule actionModule) {
+        actionModule.registerFilter(ImageBulkExtractionFilter.class);
+    }
+
+    public void onModule(RestModule restModule) {
+        restModule.addRestAction(RestImageBackfillAction.class);
+    }
+
     public void onModule(IndicesModule indicesModule) {
-        indicesModule.registerMapper(ImageMapper.CONTENT_TYPE, new ImageMapper.TypeParser(new ThreadPool("elasticsearch-image")));
+        indicesModule.registerMapper(ImageMapper.CONTENT_TYPE, imageTypeParser);
         indicesModule.registerQueryParser(ImageQueryParser.class);
 
         indicesModule.registerMapper(DescriptorMapper.CONTENT_TYPE, new DescriptorMapper.TypeParser());
@@ -0,0 +1,39 @@
+package org.elasticsearch.plugin.image;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.mapper.image.ImageBackfillService;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Progress of the deferred image extraction on the node receiving the request, <code>GET _image/backfill</code>
+ */
+public class RestImageBackfillAction extends BaseRestHandler {
+
+    private final ImageBackfillService backfillService;
+
+    @Inject
+    public RestImageBackfillAction(Settings settings, RestController controller, Client client, ImageBackfillService backfillService) {
+        super(settings, controller, client);
+        this.backfillService = backfillService;
+        controller.registerHandler(RestRequest.Method.GET, "/_image/backfill", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        XContentBuilder builder = channel.newBuilder();
+        builder.startObject();
+        builder.field("pending", backfillService.pending());
+        builder.field("backfilled", backfillService.backfilled());
+        builder.field("failed", backfillService.failed());
+        builder.endObject();
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    }
+}
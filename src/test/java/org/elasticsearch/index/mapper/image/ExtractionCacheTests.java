@@ -0,0 +1,63 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.indices.breaker.HierarchyCircuitBreakerService;
+import org.elasticsearch.node.settings.NodeSettingsService;
+import org.elasticsearch.plugin.image.ImageBreaker;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class ExtractionCacheTests extends ESTestCase {
+
+    private CircuitBreaker breaker;
+
+    private ExtractionCache cache(String size, String breakerLimit) {
+        Settings settings = Settings.builder()
+                .put(ExtractionCache.SIZE_SETTING, size)
+                .put(ImageBreaker.LIMIT_SETTING, breakerLimit)
+                .build();
+        ImageBreaker imageBreaker = new ImageBreaker(settings, new HierarchyCircuitBreakerService(settings, new NodeSettingsService(settings)));
+        breaker = imageBreaker.breaker();
+        return new ExtractionCache(settings, imageBreaker);
+    }
+
+    private static ExtractedFeature feature(int bytes) {
+        return new ExtractedFeature(new byte[bytes], new int[HashEnum.values().length][]);
+    }
+
+    @Test
+    public void test_put_charges_breaker() {
+        ExtractionCache cache = cache("1mb", "1mb");
+        cache.put("a", feature(100));
+        long used = breaker.getUsed();
+        assertThat(used, greaterThan(100L));
+        assertThat(cache.get("a"), notNullValue());
+
+        cache.put("a", feature(100));   // replaced, the old value is given back
+        assertThat(breaker.getUsed(), equalTo(used));
+    }
+
+    @Test
+    public void test_eviction_releases_breaker() {
+        ExtractionCache cache = cache("1kb", "1mb");
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, feature(200));
+        }
+        assertThat("Should keep at most the cache size charged", breaker.getUsed(), lessThanOrEqualTo(1024L));
+    }
+
+    @Test
+    public void test_skip_when_breaker_trips() {
+        ExtractionCache cache = cache("1mb", "1kb");
+        cache.put("a", feature(2000));
+        assertThat(cache.get("a"), nullValue());
+        assertThat(breaker.getUsed(), equalTo(0L));
+    }
+}
@@ -0,0 +1,168 @@
+package org.elasticsearch.index.mapper.image;
+
+import net.semanticmetadata.lire.utils.ImageUtils;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+
+public class ImageDecoderTests extends ESTestCase {
+
+    @Test
+    public void test_subsampling_nearest() {
+        ResamplingEnum nearest = ResamplingEnum.NEAREST;
+        assertThat(ImageDecoder.subsampling(100, 60, 1024, nearest), equalTo(1));
+        assertThat(ImageDecoder.subsampling(1024, 10, 1024, nearest), equalTo(1));
+        assertThat(ImageDecoder.subsampling(10, 2047, 1024, nearest), equalTo(1));
+        assertThat(ImageDecoder.subsampling(2048, 10, 1024, nearest), equalTo(2));
+        assertThat(ImageDecoder.subsampling(100, 60, 30, nearest), equalTo(3));
+    }
+
+    @Test
+    public void test_subsampling_keeps_twice_target() {
+        for (ResamplingEnum resampling : EnumSet.complementOf(EnumSet.of(ResamplingEnum.NEAREST))) {
+            assertThat(ImageDecoder.subsampling(100, 60, 1024, resampling), equalTo(1));
+            assertThat(ImageDecoder.subsampling(2048, 10, 1024, resampling), equalTo(1));
+            assertThat(ImageDecoder.subsampling(10, 4095, 1024, resampling), equalTo(1));
+            assertThat(ImageDecoder.subsampling(4096, 10, 1024, resampling), equalTo(2));
+            assertThat(ImageDecoder.subsampling(100, 60, 30, resampling), equalTo(1));
+            assertThat(ImageDecoder.subsampling(200, 60, 30, resampling), equalTo(3));
+        }
+    }
+
+    @Test
+    public void test_pixels() throws IOException {
+        ResamplingEnum nearest = ResamplingEnum.NEAREST;
+        assertThat(ImageDecoder.pixels(png(20, 10), 30, nearest, true), equalTo(200L));
+        assertThat(ImageDecoder.pixels(png(100, 60), 100, nearest, true), equalTo(6000L));
+        // subsampled by 3, partial last rows and columns are kept
+        assertThat(ImageDecoder.pixels(png(100, 60), 30, nearest, true), equalTo(34L * 20));
+        assertThat(ImageDecoder.pixels(png(100, 60), 30, ResamplingEnum.AREA_AVERAGE, true), equalTo(6000L));
+        assertThat(ImageDecoder.pixels(png(200, 60), 30, ResamplingEnum.BILINEAR, true), equalTo(67L * 20));
+        assertThat(ImageDecoder.pixels(new byte[]{1, 2, 3, 4}, 30, nearest, true), equalTo(-1L));
+    }
+
+    @Test
+    public void test_pixels_without_subsampling() throws IOException {
+        for (ResamplingEnum resampling : ResamplingEnum.values()) {
+            assertThat(ImageDecoder.pixels(png(100, 60), 30, resampling, false), equalTo(6000L));
+        }
+    }
+
+    @Test
+    public void test_decode_size() throws IOException {
+        int width = randomIntBetween(50, 200);
+        int height = randomIntBetween(50, 200);
+        int maxDimension = randomIntBetween(20, 200);
+        byte[] content = png(width, height);
+        for (ResamplingEnum resampling : ResamplingEnum.values()) {
+            for (boolean subsampling : new boolean[]{false, true}) {
+                BufferedImage img = ImageDecoder.decode(content, maxDimension, resampling, subsampling);
+                assertThat(img.getType(), equalTo(BufferedImage.TYPE_INT_RGB));
+                assertThat(Math.max(img.getWidth(), img.getHeight()), equalTo(Math.min(Math.max(width, height), maxDimension)));
+            }
+        }
+    }
+
+    @Test
+    public void test_decode_without_subsampling_scales_full_image() throws IOException {
+        BufferedImage original = new BufferedImage(100, 60, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < original.getHeight(); y++) {
+            for (int x = 0; x < original.getWidth(); x++) {
+                original.setRGB(x, y, randomInt());
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(original, "png", out);
+        // indices mapped before subsampling decoded the whole image and shrunk it with LIRE
+        assertSamePixels(ImageUtils.scaleImage(original, 30), ImageDecoder.decode(out.toByteArray(), 30, ResamplingEnum.BILINEAR, false));
+    }
+
+    @Test
+    public void test_decode_deadline() throws IOException {
+        byte[] content = png(100, 60);
+        assertThat(ImageDecoder.decode(content, 30, ResamplingEnum.NEAREST, true, System.nanoTime() + TimeUnit.MINUTES.toNanos(1)).getWidth(), equalTo(30));
+        try {
+            ImageDecoder.decode(content, 30, ResamplingEnum.NEAREST, true, System.nanoTime() - 1);
+            fail("Should abort decoding once the deadline passed");
+        } catch (ElasticsearchTimeoutException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test_to_rgb_gray() {
+        BufferedImage img = new BufferedImage(randomIntBetween(1, 50), randomIntBetween(1, 50), BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster raster = img.getRaster();
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                raster.setSample(x, y, 0, randomIntBetween(0, 255));
+            }
+        }
+        assertSamePixels(img, ImageDecoder.toRgb(img));
+    }
+
+    @Test
+    public void test_to_rgb_indexed() {
+        BufferedImage img = new BufferedImage(randomIntBetween(1, 50), randomIntBetween(1, 50), BufferedImage.TYPE_BYTE_INDEXED);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                img.setRGB(x, y, randomInt());
+            }
+        }
+        assertSamePixels(img, ImageDecoder.toRgb(img));
+    }
+
+    @Test
+    public void test_to_rgb_argb() {
+        BufferedImage img = new BufferedImage(randomIntBetween(1, 50), randomIntBetween(1, 50), BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                img.setRGB(x, y, randomInt());
+            }
+        }
+        assertSamePixels(img, ImageDecoder.toRgb(img));
+    }
+
+    @Test
+    public void test_to_rgb_keeps_rgb() {
+        BufferedImage img = new BufferedImage(randomIntBetween(1, 50), randomIntBetween(1, 50), BufferedImage.TYPE_INT_RGB);
+        assertThat(ImageDecoder.toRgb(img), sameInstance(img));
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                img.setRGB(x, y, randomInt());
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Extractors used to read the decoded image through getRGB, which they must still see apart from alpha
+     */
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertThat(actual.getType(), equalTo(BufferedImage.TYPE_INT_RGB));
+        assertThat(actual.getWidth(), equalTo(expected.getWidth()));
+        assertThat(actual.getHeight(), equalTo(expected.getHeight()));
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertThat("Pixel " + x + "," + y, actual.getRGB(x, y) & 0xffffff, equalTo(expected.getRGB(x, y) & 0xffffff));
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.elasticsearch.index.mapper.image;
+
+import net.semanticmetadata.lire.indexers.hashing.LocalitySensitiveHashing;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+
+public class LshMultiProbeTests extends ESTestCase {
+
+    private int dimensions;
+
+    @Before
+    public void readHashFunctions() throws IOException {
+        dimensions = LocalitySensitiveHashing.readHashFunctions(getClass().getResourceAsStream(ImageMapper.LSH_HASH_FILE))[0].length;
+    }
+
+    private double[] randomVector() {
+        double[] vector = new double[dimensions];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = randomDoubleBetween(-10, 10, true);
+        }
+        return vector;
+    }
+
+    @Test
+    public void test_terms_per_function() {
+        assertThat(LshMultiProbe.terms(new int[]{3, -17, 0}), equalTo(new String[]{"0_3", "1_n17", "2_0"}));
+        assertThat(LshMultiProbe.value(new int[]{3, -17, 0}), equalTo("0_3 1_n17 2_0"));
+    }
+
+    @Test
+    public void test_same_buckets_as_lire() {
+        for (int i = 0; i < 10; i++) {
+            double[] vector = randomVector();
+            String[] expected = LshMultiProbe.terms(LocalitySensitiveHashing.generateHashes(vector));
+            assertThat(LshMultiProbe.probeTerms(vector, 0), equalTo(expected));
+        }
+    }
+
+    @Test
+    public void test_probes_neighbouring_buckets() {
+        double[] vector = randomVector();
+        int[] hashes = LocalitySensitiveHashing.generateHashes(vector);
+        int probes = randomIntBetween(1, hashes.length);
+        String[] terms = LshMultiProbe.probeTerms(vector, probes);
+        assertThat(terms.length, equalTo(hashes.length + probes));
+        assertThat(Arrays.copyOf(terms, hashes.length), equalTo(LshMultiProbe.terms(hashes)));
+
+        Set<String> probed = new HashSet<>();
+        for (int i = hashes.length; i < terms.length; i++) {
+            assertTrue("Should probe each neighbour once", probed.add(terms[i]));
+        }
+        for (String term : probed) {
+            int function = Integer.parseInt(term.substring(0, term.indexOf('_')));
+            assertTrue("Should probe a neighbour of the bucket of the function " + term,
+                    term.equals(LshMultiProbe.term(function, hashes[function] - 1)) || term.equals(LshMultiProbe.term(function, hashes[function] + 1)));
+        }
+
+        assertThat("Should probe at most both neighbours of each function",
+                LshMultiProbe.probeTerms(vector, Integer.MAX_VALUE).length, equalTo(hashes.length * 3));
+    }
+
+    @Test
+    public void test_terms_survive_standard_analyzer() throws IOException {
+        String value = LshMultiProbe.value(new int[]{3, -17, 0, Integer.MIN_VALUE});
+        List<String> tokens = new ArrayList<>();
+        try (StandardAnalyzer analyzer = new StandardAnalyzer();
+             TokenStream stream = analyzer.tokenStream("hash", value)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(term.toString());
+            }
+            stream.end();
+        }
+        assertThat(tokens, equalTo(Arrays.asList(value.split(" "))));
+    }
+}
@@ -0,0 +1,86 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.indices.breaker.HierarchyCircuitBreakerService;
+import org.elasticsearch.node.settings.NodeSettingsService;
+import org.elasticsearch.plugin.image.ImageBreaker;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+
+public class PixelBudgetTests extends ESTestCase {
+
+    private CircuitBreaker breaker;
+
+    private PixelBudget budget(int maxPixels, String breakerLimit) {
+        Settings settings = Settings.builder()
+                .put(PixelBudget.MAX_PIXELS_SETTING, maxPixels)
+                .put(ImageBreaker.LIMIT_SETTING, breakerLimit)
+                .build();
+        ImageBreaker imageBreaker = new ImageBreaker(settings, new HierarchyCircuitBreakerService(settings, new NodeSettingsService(settings)));
+        breaker = imageBreaker.breaker();
+        return new PixelBudget(settings, imageBreaker);
+    }
+
+    @Test
+    public void test_admit_charges_breaker() {
+        PixelBudget budget = budget(1000, "1mb");
+        Releasable first = budget.admit(100, "test");
+        Releasable second = budget.admit(300, "test");
+        assertThat(breaker.getUsed(), equalTo(400L * PixelBudget.BYTES_PER_PIXEL));
+        first.close();
+        assertThat(breaker.getUsed(), equalTo(300L * PixelBudget.BYTES_PER_PIXEL));
+        second.close();
+        assertThat(breaker.getUsed(), equalTo(0L));
+    }
+
+    @Test
+    public void test_reject_when_exhausted() {
+        PixelBudget budget = budget(1000, "1mb");
+        Releasable first = budget.admit(600, "test");
+        try {
+            budget.admit(600, "test");
+            fail("Should reject images beyond the pixel budget");
+        } catch (EsRejectedExecutionException e) {
+            assertThat(breaker.getUsed(), equalTo(600L * PixelBudget.BYTES_PER_PIXEL));
+        }
+        first.close();
+        budget.admit(600, "test").close();
+        assertThat(breaker.getUsed(), equalTo(0L));
+    }
+
+    @Test
+    public void test_image_larger_than_budget() {
+        PixelBudget budget = budget(1000, "1mb");
+        Releasable large = budget.admit(5000, "test");
+        assertThat("Should charge the whole image", breaker.getUsed(), equalTo(5000L * PixelBudget.BYTES_PER_PIXEL));
+        try {
+            budget.admit(1, "test");
+            fail("Should reserve the whole budget");
+        } catch (EsRejectedExecutionException e) {
+            // expected
+        }
+        large.close();
+        budget.admit(1, "test").close();
+        assertThat(breaker.getUsed(), equalTo(0L));
+    }
+
+    @Test
+    public void test_breaker_rejection_gives_pixels_back() {
+        PixelBudget budget = budget(200, "1kb");
+        try {
+            budget.admit(200, "test");   // 1600 bytes
+            fail("Should reject images tripping the breaker");
+        } catch (EsRejectedExecutionException e) {
+            assertThat(breaker.getUsed(), equalTo(0L));
+        }
+        Releasable admission = budget.admit(100, "test");   // needs the pixels of the rejected image back
+        assertThat(breaker.getUsed(), equalTo(100L * PixelBudget.BYTES_PER_PIXEL));
+        admission.close();
+        assertThat(breaker.getUsed(), equalTo(0L));
+    }
+}
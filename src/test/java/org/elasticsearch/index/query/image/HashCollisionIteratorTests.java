@@ -0,0 +1,113 @@
+package org.elasticsearch.index.query.image;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.apache.lucene.search.DocIdSetIterator.NO_MORE_DOCS;
+import static org.hamcrest.CoreMatchers.equalTo;
+
+public class HashCollisionIteratorTests extends ESTestCase {
+    private static final String FIELD = "hash";
+
+    private Directory directory;
+    private DirectoryReader reader;
+
+    @Before
+    public void createIndex() throws IOException {
+        directory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new MockAnalyzer(random())));
+        writer.addDocument(doc("1", "2", "3"));   // 0
+        writer.addDocument(doc("1"));             // 1
+        writer.addDocument(doc("2", "3"));        // 2
+        writer.addDocument(doc("4"));             // 3
+        writer.addDocument(doc("1", "3", "4"));   // 4
+        writer.forceMerge(1);
+        writer.close();
+        reader = DirectoryReader.open(directory);
+    }
+
+    @After
+    public void closeIndex() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    private static Document doc(String... hashes) {
+        Document doc = new Document();
+        for (String hash : hashes) {
+            doc.add(new StringField(FIELD, hash, Field.Store.NO));
+        }
+        return doc;
+    }
+
+    private HashCollisionIterator iterator(int minCollisions, String... hashes) throws IOException {
+        LeafReader leaf = reader.leaves().get(0).reader();
+        List<PostingsEnum> postings = new ArrayList<>();
+        for (String hash : hashes) {
+            PostingsEnum postingsEnum = leaf.postings(new Term(FIELD, hash), PostingsEnum.NONE);
+            if (postingsEnum != null) {
+                postings.add(postingsEnum);
+            }
+        }
+        return new HashCollisionIterator(postings, minCollisions);
+    }
+
+    private static void assertNext(HashCollisionIterator iterator, int doc, int collisions) throws IOException {
+        assertThat(iterator.nextDoc(), equalTo(doc));
+        assertThat("Collisions of doc " + doc, iterator.collisions(), equalTo(collisions));
+    }
+
+    @Test
+    public void test_every_doc_once() throws IOException {
+        HashCollisionIterator iterator = iterator(1, "1", "2", "3");
+        assertNext(iterator, 0, 3);
+        assertNext(iterator, 1, 1);
+        assertNext(iterator, 2, 2);
+        assertNext(iterator, 4, 2);
+        assertThat(iterator.nextDoc(), equalTo(NO_MORE_DOCS));
+    }
+
+    @Test
+    public void test_min_collisions() throws IOException {
+        HashCollisionIterator iterator = iterator(2, "1", "2", "3");
+        assertNext(iterator, 0, 3);
+        assertNext(iterator, 2, 2);
+        assertNext(iterator, 4, 2);
+        assertThat(iterator.nextDoc(), equalTo(NO_MORE_DOCS));
+
+        iterator = iterator(3, "1", "2", "3");
+        assertNext(iterator, 0, 3);
+        assertThat(iterator.nextDoc(), equalTo(NO_MORE_DOCS));
+    }
+
+    @Test
+    public void test_min_collisions_above_terms() throws IOException {
+        HashCollisionIterator iterator = iterator(3, "1", "4");
+        assertThat("No doc can share more hashes than the query has", iterator.nextDoc(), equalTo(NO_MORE_DOCS));
+    }
+
+    @Test
+    public void test_advance_min_collisions() throws IOException {
+        HashCollisionIterator iterator = iterator(2, "1", "3", "4");
+        assertThat(iterator.advance(1), equalTo(4));
+        assertThat(iterator.collisions(), equalTo(3));
+        assertThat(iterator.nextDoc(), equalTo(NO_MORE_DOCS));
+    }
+}
@@ -0,0 +1,58 @@
+package org.elasticsearch.index.query.image;
+
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+
+public class HashTermPruningTests extends ESTestCase {
+
+    @Test
+    public void test_fraction_of_max_doc() {
+        HashTermPruning pruning = new HashTermPruning(-1, 0.25f);
+        int[] docFreqs = {1, 25, 26, 100, 5};
+        assertThat("Should drop terms matching more than 25% of docs", pruning.select(docFreqs, 100), equalTo(new int[]{0, 1, 4}));
+    }
+
+    @Test
+    public void test_fraction_rounds_up() {
+        HashTermPruning pruning = new HashTermPruning(-1, 0.25f);
+        int[] docFreqs = {1, 2, 3};
+        assertThat("Cutoff of 0.25 * 5 docs should be 2", pruning.select(docFreqs, 5), equalTo(new int[]{0, 1}));
+    }
+
+    @Test
+    public void test_absolute_doc_freq() {
+        HashTermPruning pruning = new HashTermPruning(-1, 3);
+        int[] docFreqs = {4, 3, 1, 1000};
+        assertThat("Should drop terms matching more than 3 docs", pruning.select(docFreqs, 1000000), equalTo(new int[]{1, 2}));
+    }
+
+    @Test
+    public void test_missing_terms_dropped() {
+        int[] docFreqs = {0, 2, 0, 7};
+        assertThat(new HashTermPruning(-1, 1000).select(docFreqs, 10), equalTo(new int[]{1, 3}));
+        assertThat(new HashTermPruning(10, -1).select(docFreqs, 10), equalTo(new int[]{1, 3}));
+    }
+
+    @Test
+    public void test_max_terms_keeps_rarest() {
+        HashTermPruning pruning = new HashTermPruning(2, -1);
+        int[] docFreqs = {9, 1, 5, 2, 7};
+        assertThat("Should keep the 2 rarest terms in term order", pruning.select(docFreqs, 10), equalTo(new int[]{1, 3}));
+    }
+
+    @Test
+    public void test_max_terms_after_cutoff() {
+        HashTermPruning pruning = new HashTermPruning(2, 0.5f);
+        int[] docFreqs = {6, 4, 5, 3, 1};
+        assertThat(pruning.select(docFreqs, 10), equalTo(new int[]{3, 4}));
+    }
+
+    @Test
+    public void test_disabled() {
+        assertFalse(HashTermPruning.NONE.isEnabled());
+        int[] docFreqs = {10, 10, 3};
+        assertThat(HashTermPruning.NONE.select(docFreqs, 10), equalTo(new int[]{0, 1, 2}));
+    }
+}
@@ -0,0 +1,50 @@
+package org.elasticsearch.plugin.image;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.indices.breaker.HierarchyCircuitBreakerService;
+import org.elasticsearch.node.settings.NodeSettingsService;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+
+public class ImageBreakerTests extends ESTestCase {
+
+    @Test
+    public void test_registered_breaker() {
+        Settings settings = Settings.builder()
+                .put(ImageBreaker.LIMIT_SETTING, "1kb")
+                .put(ImageBreaker.OVERHEAD_SETTING, 2.0)
+                .build();
+        CircuitBreakerService breakerService = new HierarchyCircuitBreakerService(settings, new NodeSettingsService(settings));
+        CircuitBreaker breaker = new ImageBreaker(settings, breakerService).breaker();
+
+        assertThat(breakerService.getBreaker(ImageBreaker.NAME), sameInstance(breaker));
+        assertThat(breaker.getLimit(), equalTo(1024L));
+        assertThat(breaker.getOverhead(), equalTo(2.0));
+        assertThat(breakerService.stats().getStats(ImageBreaker.NAME).getLimit(), equalTo(1024L));
+    }
+
+    @Test
+    public void test_accounting() {
+        Settings settings = Settings.builder().put(ImageBreaker.LIMIT_SETTING, "1kb").build();
+        CircuitBreakerService breakerService = new HierarchyCircuitBreakerService(settings, new NodeSettingsService(settings));
+        CircuitBreaker breaker = new ImageBreaker(settings, breakerService).breaker();
+
+        breaker.addEstimateBytesAndMaybeBreak(1000, "test");
+        assertThat(breakerService.stats().getStats(ImageBreaker.NAME).getEstimated(), equalTo(1000L));
+        try {
+            breaker.addEstimateBytesAndMaybeBreak(100, "test");
+            fail("Should break above the limit");
+        } catch (CircuitBreakingException e) {
+            assertThat("Should not keep the rejected bytes", breaker.getUsed(), equalTo(1000L));
+        }
+        breaker.addWithoutBreaking(-1000);
+        assertThat(breakerService.stats().getStats(ImageBreaker.NAME).getEstimated(), equalTo(0L));
+        assertThat(breakerService.stats().getStats(ImageBreaker.NAME).getTrippedCount(), equalTo(1L));
+    }
+}
@@ -1,28 +1,51 @@
 package org.elasticsearch.plugin.image.test;
 
 import com.carrotsearch.randomizedtesting.annotations.ThreadLeakScope;
+import net.semanticmetadata.lire.indexers.hashing.LocalitySensitiveHashing;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 import org.apache.sanselan.ImageFormat;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.admin.cluster.node.info.NodeInfo;
+import org.elasticsearch.action.admin.cluster.node.info.NodesInfoResponse;
+import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchResponse;
 import com.google.common.collect.Maps;
 import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.mapper.descriptor.DescriptorMapper;
+import org.elasticsearch.index.mapper.image.ExtractedFeature;
 import org.elasticsearch.index.mapper.image.FeatureEnum;
 import org.elasticsearch.index.mapper.image.HashEnum;
+import org.elasticsearch.index.mapper.image.ImageBackfillService;
+import org.elasticsearch.index.mapper.image.ImageBulkExtractionFilter;
+import org.elasticsearch.index.mapper.image.ImageFeatureExtractor;
+import org.elasticsearch.index.mapper.image.ImageMapper;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.TermQueryBuilder;
 import org.elasticsearch.index.query.descriptor.DescriptorQueryBuilder;
+import org.elasticsearch.index.query.image.FeatureMatrixCache;
 import org.elasticsearch.index.query.image.ImageQueryBuilder;
+import org.elasticsearch.index.query.image.ImageQueryParser;
+import org.elasticsearch.plugin.image.ImageBreaker;
 import org.elasticsearch.plugin.image.ImagePlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.test.ESIntegTestCase;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.hamcrest.Matcher;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -30,13 +53,25 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.Buffer;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
 
 import static org.elasticsearch.client.Requests.putMappingRequest;
 import static org.elasticsearch.common.io.Streams.copyToString;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertFailures;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 
 @ThreadLeakScope(ThreadLeakScope.Scope.NONE)
 @ESIntegTestCase.ClusterScope(scope = ESIntegTestCase.Scope.SUITE,numDataNodes=1)
@@ -51,6 +86,8 @@ public class ImageIntegrationTests extends ESIntegTestCase
     protected Settings nodeSettings(int nodeOrdinal) {
         return Settings.builder()
                 .put(super.nodeSettings(nodeOrdinal))
+                .put("threadpool." + ImagePlugin.EXTRACT_THREAD_POOL + ".size", 2)
+                .put(ImageBackfillService.INTERVAL_SETTING, "200ms")
                 .build();
     }
 
@@ -76,6 +113,21 @@ public class ImageIntegrationTests extends ESIntegTestCase
                 .build();
     }
 
+    @Test
+    public void test_extract_thread_pool() throws Exception {
+        NodesInfoResponse response = client().admin().cluster().prepareNodesInfo().setThreadPool(true).get();
+        for (NodeInfo nodeInfo : response.getNodes()) {
+            ThreadPool.Info info = null;
+            for (ThreadPool.Info pool : nodeInfo.getThreadPool()) {
+                if (ImagePlugin.EXTRACT_THREAD_POOL.equals(pool.getName())) {
+                    info = pool;
+                }
+            }
+            assertNotNull("Should register image extract pool", info);
+            assertThat(info.getMax(), equalTo(2));
+        }
+    }
+
     @Test
     public void test_custom_descriptor() throws Exception {
         String mapping = copyToStringFromClasspath("/mapping/test-custom-descriptor-mapping.json");
@@ -103,6 +155,73 @@ public class ImageIntegrationTests extends ESIntegTestCase
         assertThat("Should get all images", searchResponse.getHits().getTotalHits(), equalTo(2L));
     }
 
+    @Test
+    public void test_ivf_descriptor() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-custom-descriptor-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        IndexResponse response;
+
+        double[] descriptor1 = {93.2898506328,1.60547220488,9.82604905671,5.47926835962,93.2898506328,1.60547220488,9.82604905671,5.47926835962,61.7219750361,7.35531210836,11.5955937097,6.07399126872,61.7219750361,7.35531210836,11.5955937097,6.07399126872,39.1968826395,5.20884575485,8.37111025775,5.75187249182,39.1968826395,5.20884575485,8.37111025775,5.75187249182};
+        double[] descriptor2 = {91.9514592393,1.44932896695,14.1452503321,6.62480241627,91.9514592393,1.44932896695,14.1452503321,6.62480241627,69.301305481,-2.19131447809,6.18487260201,4.62912431105,47.8153120888,-1.38346268762,2.63372212916,2.11236387224,28.9951402701,2.5396739384,0.917429499627,5.4973739121,28.9951402701,2.5396739384,0.917429499627,5.4973739121};
+
+        response = index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("test_descriptor", descriptor1).endObject());
+        String id1 = response.getId();
+
+        response = index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("test_descriptor", descriptor2).endObject());
+
+        refresh();
+
+        final QueryBuilder queryBuilder = new DescriptorQueryBuilder("test_descriptor").descriptor(descriptor1).mode("ivf").limit(2);
+
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(queryBuilder).setSize(2).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should get all descriptors", searchResponse.getHits().getTotalHits(), equalTo(2L));
+        assertThat("First should be exact match", searchResponse.getHits().getAt(0).getId(), equalTo(id1));
+
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                // segments merged in the meantime are trained on the next search
+                client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(queryBuilder).setSize(2).get();
+                assertThat("Should charge the trained index to the breaker", imageBreakerEstimated(), greaterThan(0L));
+            }
+        });
+
+        searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(queryBuilder).setSize(2).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should get all descriptors from the index", searchResponse.getHits().getTotalHits(), equalTo(2L));
+        assertThat("First should be exact match", searchResponse.getHits().getAt(0).getId(), equalTo(id1));
+
+        QueryBuilder tooLarge = new DescriptorQueryBuilder("test_descriptor").descriptor(descriptor1).mode("ivf").limit(ImageQueryParser.MAX_LIMIT + 1);
+        assertFailures(client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(tooLarge), RestStatus.BAD_REQUEST, containsString("[limit] must be between"));
+    }
+
+    @Test
+    public void test_byte_descriptor() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-byte-descriptor-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        IndexResponse response;
+
+        double[] descriptor1 = {93.2898506328,1.60547220488,9.82604905671,5.47926835962,93.2898506328,1.60547220488,9.82604905671,5.47926835962,61.7219750361,7.35531210836,11.5955937097,6.07399126872,61.7219750361,7.35531210836,11.5955937097,6.07399126872,39.1968826395,5.20884575485,8.37111025775,5.75187249182,39.1968826395,5.20884575485,8.37111025775,5.75187249182};
+        double[] descriptor2 = {91.9514592393,1.44932896695,14.1452503321,6.62480241627,91.9514592393,1.44932896695,14.1452503321,6.62480241627,69.301305481,-2.19131447809,6.18487260201,4.62912431105,47.8153120888,-1.38346268762,2.63372212916,2.11236387224,28.9951402701,2.5396739384,0.917429499627,5.4973739121,28.9951402701,2.5396739384,0.917429499627,5.4973739121};
+
+        response = index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("test_descriptor", descriptor1).endObject());
+        String id1 = response.getId();
+
+        response = index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("test_descriptor", descriptor2).endObject());
+
+        refresh();
+
+        QueryBuilder queryBuilder = new DescriptorQueryBuilder("test_descriptor").descriptor(descriptor1).mode("ivf").limit(2);
+
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(queryBuilder).setSize(2).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should get all descriptors", searchResponse.getHits().getTotalHits(), equalTo(2L));
+        assertThat("First should be closest after quantization", searchResponse.getHits().getAt(0).getId(), equalTo(id1));
+    }
+
     @Test
     public void test_null_descriptor() throws Exception {
         String mapping = copyToStringFromClasspath("/mapping/test-custom-descriptor-mapping.json");
@@ -236,10 +355,538 @@ public class ImageIntegrationTests extends ESIntegTestCase
         */
     }
 
+    @Test
+    public void test_scan_image() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        int totalImages = randomIntBetween(10, 30);
+        byte[] imgToSearch = null;
+        String nameToSearch = null;
+        for (int i = 0; i < totalImages; i ++) {
+            byte[] imageByte = getRandomImage();
+            String name = randomAsciiOfLength(5);
+            index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", imageByte).field("name", name).endObject());
+            if (imgToSearch == null) {
+                imgToSearch = imageByte;
+                nameToSearch = name;
+            }
+        }
+
+        refresh();
+
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).mode("scan").limit(totalImages);
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should get all images", searchResponse.getHits().getTotalHits(), equalTo((long) totalImages));
+        assertExactMatch(searchResponse.getHits(), nameToSearch);
+
+        ImageQueryBuilder tooLarge = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).mode("scan").limit(ImageQueryParser.MAX_LIMIT + 1);
+        assertFailures(client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(tooLarge), RestStatus.BAD_REQUEST, containsString("[limit] must be between"));
+
+        // without limit, from + size of the search
+        ImageQueryBuilder defaultLimit = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).mode("scan");
+        int size = randomIntBetween(1, totalImages);
+        searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(defaultLimit).setSize(size).get();
+        assertNoFailures(searchResponse);
+        assertThat(searchResponse.getHits().getHits().length, equalTo(size));
+        assertThat("Should keep from + size images per shard", searchResponse.getHits().getTotalHits(),
+                lessThanOrEqualTo((long) size * getNumShards(INDEX_NAME).numPrimaries));
+
+        ImageQueryBuilder badMode = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).mode("bogus");
+        assertFailures(client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(badMode), RestStatus.BAD_REQUEST, containsString("invalid value for [mode]"));
+    }
+
+    @Test
+    public void test_feature_cache() throws Exception {
+        String cached = "cached";
+        String uncached = "uncached";
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        for (String index : new String[] {cached, uncached}) {
+            assertAcked(prepareCreate(index).setSettings(Settings.builder()
+                    .put("index.number_of_shards", 1)
+                    .put("index.number_of_replicas", 0)
+                    .put(FeatureMatrixCache.ENABLED_SETTING, index.equals(cached))));
+            client().admin().indices().putMapping(putMappingRequest(index).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+        }
+        ensureGreen(cached, uncached);
+
+        int totalImages = randomIntBetween(5, 20);
+        byte[] imgToSearch = null;
+        String nameToSearch = null;
+        for (int i = 0; i < totalImages; i ++) {
+            byte[] imageByte = getRandomImage();
+            String name = "image" + i;
+            for (String index : new String[] {cached, uncached}) {
+                index(index, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", imageByte).field("name", name).endObject());
+            }
+            if (imgToSearch == null) {
+                imgToSearch = imageByte;
+                nameToSearch = name;
+            }
+        }
+
+        refresh();   // new segments are warmed before they are searched
+        assertThat("Should charge the feature matrices to the breaker", imageBreakerEstimated(), greaterThan(0L));
+
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).mode("scan").limit(totalImages);
+        SearchResponse cachedResponse = client().prepareSearch(cached).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(cachedResponse);
+        assertThat("Should get all images", cachedResponse.getHits().getTotalHits(), equalTo((long) totalImages));
+        SearchHit exactMatch = assertExactMatch(cachedResponse.getHits(), nameToSearch);
+        assertThat("Exact match should have score 2", exactMatch.getScore(), equalTo(2.0f));
+
+        SearchResponse uncachedResponse = client().prepareSearch(uncached).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(uncachedResponse);
+        for (SearchHit hit : uncachedResponse.getHits()) {
+            assertImageScore(cachedResponse.getHits(), (String) hit.getSource().get("name"), hit.getScore());
+        }
+
+        assertAcked(client().admin().indices().prepareDelete(cached, uncached));
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                assertThat("Should release the feature matrices once their segments are closed", imageBreakerEstimated(), equalTo(0L));
+            }
+        });
+    }
+
+    @Test
+    public void test_ann_image() throws Exception {
+        final String index = "ann";
+        assertAcked(prepareCreate(index).setSettings(Settings.builder()
+                .put("index.number_of_shards", 1)
+                .put("index.number_of_replicas", 0)));
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(index).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+        ensureGreen(index);
+
+        int totalImages = randomIntBetween(10, 30);
+        byte[] imgToSearch = null;
+        String nameToSearch = null;
+        for (int i = 0; i < totalImages; i ++) {
+            byte[] imageByte = getRandomImage();
+            String name = randomAsciiOfLength(5);
+            index(index, DOC_TYPE_NAME, Integer.toString(i), jsonBuilder().startObject().field("img", imageByte).field("name", name).endObject());
+            if (imgToSearch == null) {
+                imgToSearch = imageByte;
+                nameToSearch = name;
+            }
+        }
+
+        refresh();
+
+        // first search scans the segment while its graph is built in the background
+        final ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).mode("ann").limit(totalImages);
+        SearchResponse searchResponse = client().prepareSearch(index).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should get all images", searchResponse.getHits().getTotalHits(), equalTo((long) totalImages));
+        assertExactMatch(searchResponse.getHits(), nameToSearch);
+
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                // segments merged in the meantime have their graph built on the next search
+                client().prepareSearch(index).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).get();
+                assertThat("Should charge the built graph to the breaker", imageBreakerEstimated(), greaterThan(0L));
+            }
+        });
+
+        searchResponse = client().prepareSearch(index).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should get all images from the graph", searchResponse.getHits().getTotalHits(), equalTo((long) totalImages));
+        assertExactMatch(searchResponse.getHits(), nameToSearch);
+
+        // deleted docs stay in the graph of the segment, limit live docs must still be found
+        int deleted = randomIntBetween(1, totalImages / 2);
+        for (int i = 1; i <= deleted; i++) {
+            client().prepareDelete(index, DOC_TYPE_NAME, Integer.toString(i)).get();
+        }
+        refresh();
+
+        int live = totalImages - deleted;
+        ImageQueryBuilder liveQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).mode("ann").limit(live);
+        searchResponse = client().prepareSearch(index).setTypes(DOC_TYPE_NAME).setQuery(liveQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should get limit live images", searchResponse.getHits().getTotalHits(), equalTo((long) live));
+        assertExactMatch(searchResponse.getHits(), nameToSearch);
+
+        ImageQueryBuilder badEf = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).mode("ann").ef(0);
+        assertFailures(client().prepareSearch(index).setTypes(DOC_TYPE_NAME).setQuery(badEf), RestStatus.BAD_REQUEST, containsString("[ef] must be between"));
+    }
+
+    @Test
+    public void test_rerank_window() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        int totalImages = randomIntBetween(10, 30);
+        byte[] imgToSearch = null;
+        String nameToSearch = null;
+        for (int i = 0; i < totalImages; i ++) {
+            byte[] imageByte = getRandomImage();
+            String name = randomAsciiOfLength(5);
+            index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", imageByte).field("name", name).endObject());
+            if (imgToSearch == null) {
+                imgToSearch = imageByte;
+                nameToSearch = name;
+            }
+        }
+
+        refresh();
+
+        int rerankWindow = randomIntBetween(1, 3);
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).rerankWindow(rerankWindow);
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should score at most rerank_window images per shard", searchResponse.getHits().getTotalHits(),
+                lessThanOrEqualTo((long) rerankWindow * getNumShards(INDEX_NAME).numPrimaries));
+        assertExactMatch(searchResponse.getHits(), nameToSearch);
+        assertThat("Exact match should have score 2", searchResponse.getHits().getAt(0).getScore(), equalTo(2.0f));
+
+        ImageQueryBuilder tooLarge = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).rerankWindow(ImageQueryParser.MAX_LIMIT + 1);
+        assertFailures(client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(tooLarge), RestStatus.BAD_REQUEST, containsString("[rerank_window] must be at most"));
+
+        ImageQueryBuilder badMinCollisions = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).minCollisions(-2);
+        assertFailures(client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(badMinCollisions), RestStatus.BAD_REQUEST, containsString("[min_collisions] must be positive"));
+        ImageQueryBuilder badMaxTerms = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).maxTerms(-2);
+        assertFailures(client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(badMaxTerms), RestStatus.BAD_REQUEST, containsString("[max_terms] must not be negative"));
+    }
+
+    @Test
+    public void test_multi_probe() throws Exception {
+        XContentBuilder mapping = jsonBuilder().startObject().startObject(DOC_TYPE_NAME).startObject("properties")
+                .startObject("img").field("type", "image").field(ImageMapper.MULTI_PROBE, true)
+                    .startObject("feature").startObject(FeatureEnum.CEDD.name()).field("hash", Arrays.asList(HashEnum.BIT_SAMPLING.name(), HashEnum.LSH.name())).endObject().endObject()
+                .endObject()
+                .startObject("test_descriptor").field("type", "descriptor").field("hash", HashEnum.LSH.name()).field(DescriptorMapper.MULTI_PROBE, true).endObject()
+                .startObject("name").field("type", "string").field("index", "not_analyzed").endObject()
+                .endObject().endObject().endObject();
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        Map<String, Object> mappingSource = client().admin().indices().prepareGetMappings(INDEX_NAME).setTypes(DOC_TYPE_NAME).get()
+                .getMappings().get(INDEX_NAME).get(DOC_TYPE_NAME).sourceAsMap();
+        assertThat(XContentMapValues.extractValue("properties.img." + ImageMapper.MULTI_PROBE, mappingSource), equalTo((Object) true));
+        assertThat(XContentMapValues.extractValue("properties.test_descriptor." + DescriptorMapper.MULTI_PROBE, mappingSource), equalTo((Object) true));
+
+        double[] descriptor = {93.2898506328,1.60547220488,9.82604905671,5.47926835962,61.7219750361,-7.35531210836,11.5955937097,6.07399126872};
+        int totalImages = randomIntBetween(5, 15);
+        byte[] imgToSearch = null;
+        String nameToSearch = null;
+        for (int i = 0; i < totalImages; i ++) {
+            byte[] imageByte = getRandomImage();
+            String name = randomAsciiOfLength(5);
+            XContentBuilder source = jsonBuilder().startObject().field("img", imageByte).field("name", name);
+            if (imgToSearch == null) {
+                imgToSearch = imageByte;
+                nameToSearch = name;
+                source.field("test_descriptor", descriptor);
+            }
+            index(INDEX_NAME, DOC_TYPE_NAME, source.endObject());
+        }
+        refresh();
+
+        // the exact match shares the bucket of every hash function, probed neighbours come on top
+        int functions = LocalitySensitiveHashing.numFunctionBundles;
+        int probes = randomIntBetween(0, 2 * functions);
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch)
+                .hash(HashEnum.LSH.name()).probes(probes).minCollisions(functions);
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertExactMatch(searchResponse.getHits(), nameToSearch);
+
+        QueryBuilder descriptorQueryBuilder = new DescriptorQueryBuilder("test_descriptor").descriptor(descriptor)
+                .hash(HashEnum.LSH.name()).probes(probes).minCollisions(functions);
+        searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(descriptorQueryBuilder).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should find the descriptor", searchResponse.getHits().getTotalHits(), equalTo(1L));
+
+        ImageQueryBuilder bitSampling = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).probes(1);
+        assertFailures(client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(bitSampling), RestStatus.BAD_REQUEST, containsString("[probes] needs the LSH hash"));
+        QueryBuilder badProbes = new DescriptorQueryBuilder("test_descriptor").descriptor(descriptor).hash(HashEnum.LSH.name()).probes(-2);
+        assertFailures(client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(badProbes), RestStatus.BAD_REQUEST, containsString("[probes] must not be negative"));
+    }
+
+    @Test
+    public void test_rejected_image() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+        byte[] image = getRandomImage();
+
+        CircuitBreaker breaker = internalCluster().getDataNodeInstance(ImageBreaker.class).breaker();
+        long limit = breaker.getLimit();
+        breaker.addWithoutBreaking(limit);   // the next image trips the breaker and is rejected
+        try {
+            ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(image).mode("scan");
+            assertFailures(client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder),
+                    RestStatus.TOO_MANY_REQUESTS, containsString("rejected"));
+
+            try {
+                index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", image).field("name", "rejected").endObject());
+                fail("Should reject the image");
+            } catch (ElasticsearchException e) {
+                assertThat(e.status(), equalTo(RestStatus.TOO_MANY_REQUESTS));
+            }
+        } finally {
+            breaker.addWithoutBreaking(-limit);
+        }
+
+        index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", image).field("name", "accepted").endObject());
+    }
+
+    @Test
+    public void test_resampling_mapping() throws Exception {
+        String resampling = randomFrom("nearest", "area_average", "progressive_bilinear");   // bilinear is the default, not serialized
+        XContentBuilder mapping = jsonBuilder().startObject().startObject(DOC_TYPE_NAME).startObject("properties")
+                .startObject("img").field("type", "image")
+                    .field(ImageMapper.MAX_DIMENSION, 64).field(ImageMapper.RESAMPLING, resampling).field(ImageMapper.SUBSAMPLING, true)
+                    .startObject("feature").startObject(FeatureEnum.CEDD.name()).field("hash", HashEnum.BIT_SAMPLING.name()).endObject().endObject()
+                .endObject()
+                .startObject("name").field("type", "string").field("index", "not_analyzed").endObject()
+                .endObject().endObject().endObject();
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        Map<String, Object> mappingSource = client().admin().indices().prepareGetMappings(INDEX_NAME).setTypes(DOC_TYPE_NAME).get()
+                .getMappings().get(INDEX_NAME).get(DOC_TYPE_NAME).sourceAsMap();
+        assertThat(XContentMapValues.extractValue("properties.img." + ImageMapper.MAX_DIMENSION, mappingSource), equalTo((Object) 64));
+        assertThat(XContentMapValues.extractValue("properties.img." + ImageMapper.RESAMPLING, mappingSource), equalTo((Object) resampling));
+        assertThat(XContentMapValues.extractValue("properties.img." + ImageMapper.SUBSAMPLING, mappingSource), equalTo((Object) true));
+
+        // query images are decoded like the indexed ones, subsampled or not
+        byte[] image = getRandomImage();
+        index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", image).field("name", "resampled").endObject());
+        index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", getRandomImage()).field("name", "other").endObject());
+        refresh();
+
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(image).mode("scan");
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).get();
+        assertNoFailures(searchResponse);
+        assertExactMatch(searchResponse.getHits(), "resampled");
+    }
+
+    @Test
+    public void test_extract_timeout() throws Exception {
+        String index = "timeout";
+        assertAcked(prepareCreate(index).setSettings(Settings.builder()
+                .put("index.number_of_replicas", 0)
+                .put("index.image.use_thread_pool", randomBoolean())
+                .put(ImageMapper.EXTRACT_TIMEOUT_SETTING, "0ms")));
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(index).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+        ensureGreen(index);
+
+        try {
+            index(index, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", getRandomImage()).field("name", "late").endObject());
+            fail("Should fail the image once the extract timeout is reached");
+        } catch (ElasticsearchException e) {
+            assertThat(e.status(), equalTo(RestStatus.BAD_REQUEST));
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString("Failed to extract features of image within"));
+        }
+
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                assertThat("Should release the pixel budget once extraction is done", imageBreakerEstimated(), equalTo(0L));
+            }
+        });
+    }
+
+    @Test
+    public void test_precomputed_features() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        ImageFeatureExtractor extractor = new ImageFeatureExtractor();
+        Map<FeatureEnum, EnumSet<HashEnum>> features = new EnumMap<>(FeatureEnum.class);   // as mapped in test-mapping.json
+        features.put(FeatureEnum.CEDD, EnumSet.of(HashEnum.BIT_SAMPLING));
+        features.put(FeatureEnum.JCD, EnumSet.of(HashEnum.BIT_SAMPLING, HashEnum.LSH));
+        int totalImages = randomIntBetween(5, 20);
+        byte[] imgToSearch = null;
+        String nameToSearch = null;
+        for (int i = 0; i < totalImages; i ++) {
+            byte[] imageByte = getRandomImage();
+            String name = randomAsciiOfLength(5);
+            XContentBuilder source = jsonBuilder().startObject().field("img");
+            ImageFeatureExtractor.toXContent(extractor.extract(imageByte, features), source);
+            index(INDEX_NAME, DOC_TYPE_NAME, source.field("name", name).endObject());
+            if (imgToSearch == null) {
+                imgToSearch = imageByte;
+                nameToSearch = name;
+            }
+        }
+
+        refresh();
+
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).mode("scan").limit(totalImages);
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should get all images", searchResponse.getHits().getTotalHits(), equalTo((long) totalImages));
+        assertExactMatch(searchResponse.getHits(), nameToSearch);   // precomputed features match the image
+    }
+
+    @Test
+    public void test_invalid_precomputed_hashes() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        Map<FeatureEnum, EnumSet<HashEnum>> features = new EnumMap<>(FeatureEnum.class);
+        features.put(FeatureEnum.CEDD, EnumSet.noneOf(HashEnum.class));
+        features.put(FeatureEnum.JCD, EnumSet.noneOf(HashEnum.class));
+        Map<FeatureEnum, ExtractedFeature> extracted = new ImageFeatureExtractor().extract(getRandomImage(), features);
+
+        assertInvalidHash(extracted, new int[]{1, 2, 3}, containsString("does not match the feature"));
+        assertInvalidHash(extracted, new String[]{"a", "b"}, containsString("must be numeric"));
+        assertInvalidHash(extracted, "1", containsString("must be an array"));
+    }
+
+    private void assertInvalidHash(Map<FeatureEnum, ExtractedFeature> extracted, Object hash, Matcher<String> message) throws IOException {
+        XContentBuilder source = jsonBuilder().startObject().startObject("img");
+        for (Map.Entry<FeatureEnum, ExtractedFeature> entry : extracted.entrySet()) {
+            source.startObject(entry.getKey().name()).field(ImageMapper.FEATURE, entry.getValue().representation());
+            if (entry.getKey() == FeatureEnum.CEDD) {
+                source.startObject(ImageMapper.HASH).field(HashEnum.BIT_SAMPLING.name(), hash).endObject();
+            }
+            source.endObject();
+        }
+        source.endObject().field("name", "invalid").endObject();
+        try {
+            index(INDEX_NAME, DOC_TYPE_NAME, source);
+            fail("Should reject hash [" + hash + "]");
+        } catch (ElasticsearchException e) {
+            assertThat(e.status(), equalTo(RestStatus.BAD_REQUEST));
+            assertThat(ExceptionsHelper.detailedMessage(e), message);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void test_deferred_extraction() throws Exception {
+        final String index = "deferred";
+        assertAcked(prepareCreate(index).setSettings(Settings.builder()
+                .put("index.number_of_replicas", 0)
+                .put(ImageMapper.DEFERRED_EXTRACTION_SETTING, true)));
+        // the backfill reads the image from _source and reindexes the doc from it
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping-source.json");
+        client().admin().indices().putMapping(putMappingRequest(index).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+        ensureGreen(index);
+
+        final String excluded = "deferred_excluded";
+        assertAcked(prepareCreate(excluded).setSettings(Settings.builder()
+                .put("index.number_of_replicas", 0)
+                .put(ImageMapper.DEFERRED_EXTRACTION_SETTING, true)));
+        client().admin().indices().putMapping(putMappingRequest(excluded).type(DOC_TYPE_NAME)
+                .source(copyToStringFromClasspath("/mapping/test-mapping.json"))).actionGet();
+        try {
+            index(excluded, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", getRandomImage()).field("name", "excluded").endObject());
+            fail("Should require the whole _source");
+        } catch (ElasticsearchException e) {
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString("needs the whole _source"));
+        }
+
+        int totalImages = randomIntBetween(5, 20);
+        byte[] imgToSearch = null;
+        String nameToSearch = null;
+        for (int i = 0; i < totalImages; i ++) {
+            byte[] imageByte = getRandomImage();
+            String name = randomAsciiOfLength(5);
+            index(index, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", imageByte).field("name", name).endObject());
+            if (imgToSearch == null) {
+                imgToSearch = imageByte;
+                nameToSearch = name;
+            }
+        }
+
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+                SearchResponse pending = client().prepareSearch(index).setSize(0)
+                        .setQuery(QueryBuilders.termQuery("img." + ImageMapper.PENDING, ImageMapper.PENDING_VALUE)).get();
+                assertThat("Should backfill all images", pending.getHits().getTotalHits(), equalTo(0L));
+            }
+        });
+
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).mode("scan").limit(totalImages);
+        SearchResponse searchResponse = client().prepareSearch(index).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should get all images", searchResponse.getHits().getTotalHits(), equalTo((long) totalImages));
+        SearchHit exactMatch = assertExactMatch(searchResponse.getHits(), nameToSearch);
+
+        Object img = exactMatch.getSource().get("img");
+        assertThat("Should keep the image given in _source", XContentMapValues.extractValue(ImageMapper.CONTENT, (Map<String, Object>) img),
+                equalTo((Object) Base64.encodeBytes(imgToSearch)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void test_bulk_extraction() throws Exception {
+        String index = "bulk";
+        assertAcked(prepareCreate(index).setSettings(Settings.builder()
+                .put("index.number_of_replicas", 0)
+                .put(ImageBulkExtractionFilter.ENABLED_SETTING, true)));
+        // keeps the image in _source to see what the filter made of it
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping-source.json");
+        client().admin().indices().putMapping(putMappingRequest(index).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+        ensureGreen(index);
+
+        int totalImages = randomIntBetween(5, 20);
+        byte[] imgToSearch = null;
+        String nameToSearch = null;
+        BulkRequestBuilder bulkRequestBuilder = client().prepareBulk();
+        for (int i = 0; i < totalImages; i ++) {
+            byte[] imageByte = getRandomImage();
+            String name = randomAsciiOfLength(5);
+            bulkRequestBuilder.add(client().prepareIndex(index, DOC_TYPE_NAME).setSource(jsonBuilder().startObject().field("img", imageByte).field("name", name).endObject()));
+            if (imgToSearch == null) {
+                imgToSearch = imageByte;
+                nameToSearch = name;
+            }
+        }
+        BulkResponse bulkResponse = bulkRequestBuilder.setRefresh(true).get();
+        assertFalse(bulkResponse.buildFailureMessage(), bulkResponse.hasFailures());
+
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).mode("scan").limit(totalImages);
+        SearchResponse searchResponse = client().prepareSearch(index).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should get all images", searchResponse.getHits().getTotalHits(), equalTo((long) totalImages));
+        SearchHit exactMatch = assertExactMatch(searchResponse.getHits(), nameToSearch);
+
+        Object img = exactMatch.getSource().get("img");
+        assertThat("Should replace the image with its precomputed features", img, instanceOf(Map.class));
+        Map<String, Object> features = (Map<String, Object>) img;
+        assertThat(features.get(ImageMapper.CONTENT), equalTo((Object) Base64.encodeBytes(imgToSearch)));
+        assertThat(XContentMapValues.extractValue(FeatureEnum.CEDD.name() + "." + ImageMapper.FEATURE, features), notNullValue());
+        assertThat(XContentMapValues.extractValue(FeatureEnum.CEDD.name() + "." + ImageMapper.HASH + "." + HashEnum.BIT_SAMPLING.name(), features), notNullValue());
+        assertThat("Should only compute the mapped hashes",
+                XContentMapValues.extractValue(FeatureEnum.CEDD.name() + "." + ImageMapper.HASH + "." + HashEnum.LSH.name(), features), nullValue());
+        assertThat(XContentMapValues.extractValue(FeatureEnum.JCD.name() + "." + ImageMapper.HASH + "." + HashEnum.LSH.name(), features), notNullValue());
+    }
+
+    private long imageBreakerEstimated() {
+        long estimated = 0;
+        for (NodeStats nodeStats : client().admin().cluster().prepareNodesStats().setBreaker(true).get().getNodes()) {
+            estimated += nodeStats.getBreaker().getStats(ImageBreaker.NAME).getEstimated();
+        }
+        return estimated;
+    }
+
+    /**
+     * The random images may have the same features, the exact match ties with them for the first place
+     */
+    private SearchHit assertExactMatch(SearchHits hits, String name) {
+        for (SearchHit hit : hits) {
+            if (hit.getSource().get("name").equals(name)) {
+                assertThat("Exact match should have the top score", hit.getScore(), equalTo(hits.getMaxScore()));
+                return hit;
+            }
+        }
+        throw new AssertionError("Image " + name + " not found");
+    }
+
     private void assertImageScore(SearchHits hits, String name, float score) {
         for (SearchHit hit : hits) {
             if ((hit.getSource() != null && hit.getSource().get("name").equals(name))
-                    || (hit.getFields() != null && !hit.getFields().isEmpty() && hit.getFields().get("name").getValue().equals(name))){
+                    || (hit.getFields() != null && hit.getFields().get("name") != null && hit.getFields().get("name").getValue().equals(name))){
                 assertThat(hit.getScore(), equalTo(score));
                 return;
             }